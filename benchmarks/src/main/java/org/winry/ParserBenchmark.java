@@ -0,0 +1,52 @@
+package org.winry;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexing and parsing of typical command lines and of lines built to stress the lexer: long quoted
+ * runs, dense escapes, many pipeline stages and variable references.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ParserBenchmark {
+
+    @Param({"simple", "redirect", "quoted", "escapes", "pipes", "variables", "control"})
+    public String shape;
+
+    private String line;
+    private CommandLexer lexer;
+
+    @Setup
+    public void setUp() {
+        lexer = new CommandLexer(name -> "value");
+        line = switch (shape) {
+            case "simple" -> "ls -la /usr/local/bin";
+            case "redirect" -> "grep -rn TODO src 2>> errors.log > todo.txt";
+            case "quoted" -> "echo '" + "x".repeat(4096) + "' \"" + "y".repeat(4096) + "\"";
+            case "escapes" -> "echo " + "a\\ b\\\"".repeat(1024);
+            case "pipes" -> "cat file" + " | tr a-z A-Z".repeat(200);
+            case "variables" -> "echo " + "$HOME/${PATH}:$?".repeat(512);
+            case "control" -> "for f in a b c; do if test -f $f; then cat $f | wc -l; else echo $f; fi; done;"
+                    .repeat(64);
+            default -> throw new IllegalArgumentException(shape);
+        };
+    }
+
+    @Benchmark
+    public int lex() {
+        return lexer.lex(line);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) {
+        blackhole.consume(Main.parse(line));
+    }
+
+}
@@ -0,0 +1,81 @@
+package org.winry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Executable lookup against a synthetic PATH of {@code directories} directories holding
+ * {@code files} executables each. The command looked up lives in the last directory, which is the
+ * worst case for a linear search.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathLookupBenchmark {
+
+    @Param({"4", "32"})
+    public int directories;
+
+    @Param({"100", "2000"})
+    public int files;
+
+    private Path root;
+    private CommandHashTable table;
+    private String last;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = Files.createTempDirectory("path-lookup");
+        var executable = PosixFilePermissions.fromString("rwxr-xr-x");
+        for (int d = 0; d < directories; d++) {
+            var dir = Files.createDirectory(root.resolve("bin" + d));
+            for (int f = 0; f < files; f++) {
+                Files.createFile(dir.resolve("cmd" + d + "_" + f),
+                        PosixFilePermissions.asFileAttribute(executable));
+            }
+        }
+        var path = IntStream.range(0, directories)
+                .mapToObj(d -> root.resolve("bin" + d).toString())
+                .collect(Collectors.joining(System.getProperty("path.separator")));
+        table = new CommandHashTable(() -> path);
+        last = "cmd" + (directories - 1) + "_" + (files - 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var paths = Files.walk(root)) {
+            for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public String hashed() {
+        return table.find(last);
+    }
+
+    @Benchmark
+    public String uncached() {
+        table.clear();
+        return table.find(last);
+    }
+
+    @Benchmark
+    public String missing() {
+        table.clear();
+        return table.find("no-such-command");
+    }
+
+}
@@ -0,0 +1,60 @@
+package org.winry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves a {@code megabytes} file through a pipeline. The external pipeline is connected by the
+ * kernel from end to end; the mixed one has the in-process {@code cat} in the middle, so every byte
+ * is pumped from the first process into the JVM and from the JVM into the last one. Divide the file
+ * size by the time per operation for bytes per second.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    @Param({"1", "64"})
+    public int megabytes;
+
+    private Path data;
+    private String external;
+    private String mixed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        data = Files.createTempFile("pipeline", ".bin");
+        var bytes = new byte[megabytes * 1024 * 1024];
+        new Random(42).nextBytes(bytes);
+        Files.write(data, bytes);
+        // 绝对路径，保证总是外部命令
+        external = "/bin/cat " + data + " | /bin/cat | /bin/cat > /dev/null";
+        // 中间的 cat 是进程内的实现，数据必须经过 JVM
+        Main.execute("export " + Main.COREUTILS + "=builtin");
+        mixed = "/bin/cat " + data + " | cat | /bin/cat > /dev/null";
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(data);
+    }
+
+    @Benchmark
+    public int externalPipeline() throws Exception {
+        return Main.execute(external);
+    }
+
+    @Benchmark
+    public int mixedPipeline() throws Exception {
+        return Main.execute(mixed);
+    }
+
+}
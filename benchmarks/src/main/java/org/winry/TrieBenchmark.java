@@ -0,0 +1,75 @@
+package org.winry;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trie building and completion queries at the sizes of a small and a very large PATH.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TrieBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int size;
+
+    private String[] words;
+    private Trie trie;
+
+    @Setup
+    public void setUp() {
+        // Executable names share a few common prefixes, like git-*, python3.* and x86_64-linux-gnu-*
+        var prefixes = new String[]{"git-", "python3.", "x86_64-linux-gnu-", "lib", "g", ""};
+        var random = new Random(42);
+        words = new String[size];
+        for (int i = 0; i < size; i++) {
+            var suffix = new StringBuilder();
+            var length = 2 + random.nextInt(10);
+            for (int j = 0; j < length; j++) {
+                suffix.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = prefixes[i % prefixes.length] + suffix;
+        }
+        trie = new Trie();
+        for (var word : words) {
+            trie.insert(word);
+        }
+    }
+
+    @Benchmark
+    public Trie insert() {
+        var fresh = new Trie();
+        for (var word : words) {
+            fresh.insert(word);
+        }
+        return fresh;
+    }
+
+    @Benchmark
+    public List<String> wordsWithPrefix() {
+        return trie.getWordsWithPrefix("git-");
+    }
+
+    @Benchmark
+    public List<String> wordsWithShortPrefix() {
+        return trie.getWordsWithPrefix("g");
+    }
+
+    @Benchmark
+    public String longestCommonPrefix() {
+        return trie.getLongestCommonPrefix("x86");
+    }
+
+    @Benchmark
+    public List<String> fuzzyMatches() {
+        return trie.getFuzzyMatches("gtco", 20, TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+}
@@ -0,0 +1,240 @@
+/*
+ * Native client for the shell daemon (org.winry.ShellDaemon), so that a batch request does not pay
+ * for starting a JVM. It speaks the same frames as org.winry.ShellClient: one REQUEST frame with
+ * the working directory, environment and arguments, then the standard input as STDIN frames, an
+ * empty one marking EOF; the daemon answers with STDOUT and STDERR frames and an EXIT frame.
+ *
+ * Without a daemon listening, it runs the program named by $SHELL_CLIENT_FALLBACK with the same
+ * arguments, or fails with status 127 when that is not set.
+ *
+ *     cc -O2 -pthread -o shell-client src/main/c/shell-client.c
+ */
+#include <errno.h>
+#include <pthread.h>
+#include <pwd.h>
+#include <signal.h>
+#include <stdint.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+enum { REQUEST = 0, STDIN = 1, STDOUT = 2, STDERR = 3, EXIT = 4 };
+
+#define MAGIC 0x53484c44
+#define BUFFER_SIZE (64 * 1024)
+
+extern char **environ;
+
+struct buffer {
+    char *data;
+    size_t length;
+    size_t capacity;
+};
+
+static void append(struct buffer *buffer, const void *bytes, size_t length) {
+    if (buffer->length + length > buffer->capacity) {
+        buffer->capacity = (buffer->length + length) * 2;
+        buffer->data = realloc(buffer->data, buffer->capacity);
+        if (buffer->data == NULL) {
+            perror("shell-client");
+            exit(1);
+        }
+    }
+    memcpy(buffer->data + buffer->length, bytes, length);
+    buffer->length += length;
+}
+
+/* 和 DataOutputStream.writeInt 一样，大端序 */
+static void append_int(struct buffer *buffer, uint32_t value) {
+    unsigned char bytes[4] = {value >> 24, value >> 16, value >> 8, value};
+    append(buffer, bytes, 4);
+}
+
+static void append_string(struct buffer *buffer, const char *value, size_t length) {
+    append_int(buffer, (uint32_t) length);
+    append(buffer, value, length);
+}
+
+static int write_fully(int fd, const void *bytes, size_t length) {
+    const char *p = bytes;
+    while (length > 0) {
+        ssize_t n = write(fd, p, length);
+        if (n < 0) {
+            if (errno == EINTR) {
+                continue;
+            }
+            return -1;
+        }
+        p += n;
+        length -= (size_t) n;
+    }
+    return 0;
+}
+
+/* 返回 0 表示读满，1 表示一开始就到了末尾，-1 表示出错或读到一半断开 */
+static int read_fully(int fd, void *bytes, size_t length) {
+    char *p = bytes;
+    size_t done = 0;
+    while (done < length) {
+        ssize_t n = read(fd, p + done, length - done);
+        if (n < 0 && errno == EINTR) {
+            continue;
+        }
+        if (n <= 0) {
+            return n == 0 && done == 0 ? 1 : -1;
+        }
+        done += (size_t) n;
+    }
+    return 0;
+}
+
+static int write_frame(int socket, int type, const void *bytes, size_t length) {
+    unsigned char header[5] = {type, length >> 24, length >> 16, length >> 8, length};
+    if (write_fully(socket, header, sizeof header) < 0) {
+        return -1;
+    }
+    return length > 0 ? write_fully(socket, bytes, length) : 0;
+}
+
+/*
+ * $SHELL_SOCKET, or codecrafters-shell.sock in $XDG_RUNTIME_DIR or /tmp, as in
+ * ShellDaemon.defaultSocket.
+ */
+static void socket_path(char *path, size_t size) {
+    const char *socket = getenv("SHELL_SOCKET");
+    const char *runtime_dir = getenv("XDG_RUNTIME_DIR");
+    if (socket != NULL) {
+        snprintf(path, size, "%s", socket);
+    } else if (runtime_dir != NULL) {
+        snprintf(path, size, "%s/codecrafters-shell.sock", runtime_dir);
+    } else {
+        struct passwd *user = getpwuid(getuid());
+        snprintf(path, size, "/tmp/codecrafters-shell-%s.sock", user != NULL ? user->pw_name : "?");
+    }
+}
+
+static int connect_daemon(void) {
+    struct sockaddr_un address = {.sun_family = AF_UNIX};
+    socket_path(address.sun_path, sizeof address.sun_path);
+    int fd = socket(AF_UNIX, SOCK_STREAM, 0);
+    if (fd < 0) {
+        return -1;
+    }
+    if (connect(fd, (struct sockaddr *) &address, sizeof address) < 0) {
+        close(fd);
+        return -1;
+    }
+    return fd;
+}
+
+static void fall_back(char **argv) {
+    const char *fallback = getenv("SHELL_CLIENT_FALLBACK");
+    if (fallback == NULL) {
+        fprintf(stderr, "shell-client: no shell daemon is listening\n");
+        exit(127);
+    }
+    argv[0] = (char *) fallback;
+    execvp(fallback, argv);
+    perror(fallback);
+    exit(127);
+}
+
+static int send_request(int socket, int argc, char **argv) {
+    struct buffer request = {0};
+    char *cwd = getcwd(NULL, 0);
+    if (cwd == NULL) {
+        perror("shell-client");
+        exit(1);
+    }
+    append_int(&request, MAGIC);
+    append_string(&request, cwd, strlen(cwd));
+    free(cwd);
+
+    uint32_t count = 0;
+    for (char **entry = environ; *entry != NULL; entry++) {
+        count += strchr(*entry, '=') != NULL;
+    }
+    append_int(&request, count);
+    for (char **entry = environ; *entry != NULL; entry++) {
+        char *equals = strchr(*entry, '=');
+        if (equals != NULL) {
+            append_string(&request, *entry, (size_t) (equals - *entry));
+            append_string(&request, equals + 1, strlen(equals + 1));
+        }
+    }
+    append_int(&request, (uint32_t) (argc - 1));
+    for (int i = 1; i < argc; i++) {
+        append_string(&request, argv[i], strlen(argv[i]));
+    }
+    int status = write_frame(socket, REQUEST, request.data, request.length);
+    free(request.data);
+    return status;
+}
+
+/* 标准输入在单独的线程里转发，这样守护进程不读输入时也不会挡住输出 */
+static void *forward_stdin(void *argument) {
+    int socket = *(int *) argument;
+    char *buffer = malloc(BUFFER_SIZE);
+    ssize_t n;
+    while (buffer != NULL && ((n = read(STDIN_FILENO, buffer, BUFFER_SIZE)) > 0 || (n < 0 && errno == EINTR))) {
+        if (n > 0 && write_frame(socket, STDIN, buffer, (size_t) n) < 0) {
+            // 守护进程已经结束了这次请求
+            free(buffer);
+            return NULL;
+        }
+    }
+    write_frame(socket, STDIN, NULL, 0);
+    free(buffer);
+    return NULL;
+}
+
+int main(int argc, char **argv) {
+    // 和 ShellClient 一样，交互式会话留在本地
+    int socket = argc > 1 ? connect_daemon() : -1;
+    if (socket < 0) {
+        fall_back(argv);
+    }
+    // 守护进程里的命令不该看到它
+    unsetenv("SHELL_CLIENT_FALLBACK");
+    signal(SIGPIPE, SIG_IGN);
+    if (send_request(socket, argc, argv) < 0) {
+        perror("shell-client");
+        return 1;
+    }
+
+    pthread_t stdin_thread;
+    if (pthread_create(&stdin_thread, NULL, forward_stdin, &socket) == 0) {
+        pthread_detach(stdin_thread);
+    }
+
+    char *payload = malloc(BUFFER_SIZE);
+    size_t capacity = BUFFER_SIZE;
+    unsigned char header[5];
+    while (payload != NULL && read_fully(socket, header, sizeof header) == 0) {
+        size_t length = (size_t) header[1] << 24 | header[2] << 16 | header[3] << 8 | header[4];
+        if (length > capacity) {
+            capacity = length;
+            payload = realloc(payload, capacity);
+            if (payload == NULL) {
+                break;
+            }
+        }
+        if (read_fully(socket, payload, length) != 0) {
+            break;
+        }
+        if (header[0] == STDOUT) {
+            write_fully(STDOUT_FILENO, payload, length);
+        } else if (header[0] == STDERR) {
+            write_fully(STDERR_FILENO, payload, length);
+        } else if (header[0] == EXIT && length == 4) {
+            unsigned char *s = (unsigned char *) payload;
+            // 不等转发输入的线程，它可能还阻塞在读终端上
+            _exit((int) ((uint32_t) s[0] << 24 | s[1] << 16 | s[2] << 8 | s[3]));
+        }
+    }
+    fprintf(stderr, "shell-client: the shell daemon closed the connection\n");
+    return 1;
+}
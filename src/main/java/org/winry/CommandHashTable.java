@@ -0,0 +1,162 @@
+package org.winry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Bash-style {@code hash} table mapping command names to their resolved location on {@code PATH}.
+ * <p>
+ * The table is dropped whenever the {@code PATH} value changes or one of its directories is
+ * modified. Directory mtimes are re-checked at most once per {@link #MTIME_CHECK_INTERVAL_NANOS},
+ * so a burst of commands costs a single round of stats instead of one per command. Misses are
+ * remembered for {@link #NEGATIVE_TTL_NANOS} so a mistyped command doesn't rescan every directory.
+ */
+public class CommandHashTable {
+
+    private static final long MTIME_CHECK_INTERVAL_NANOS = 1_000_000_000L;
+    private static final long NEGATIVE_TTL_NANOS = 2_000_000_000L;
+
+    private final Supplier<String> pathSupplier;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+    private String currentPath;
+    private Path[] directories = new Path[0];
+    private FileTime[] mtimes = new FileTime[0];
+    private long lastMtimeCheck;
+
+    public CommandHashTable(Supplier<String> pathSupplier) {
+        this.pathSupplier = pathSupplier;
+    }
+
+    /**
+     * Returns the absolute path of {@code commandName}, or null if it is not on {@code PATH}.
+     */
+    public synchronized String find(String commandName) {
+        revalidate();
+        var now = System.nanoTime();
+        var entry = entries.get(commandName);
+        if (entry != null) {
+            if (entry.location != null) {
+                entry.hits++;
+                return entry.location;
+            }
+            if (now - entry.createdAt < NEGATIVE_TTL_NANOS) {
+                return null;
+            }
+        }
+
+        var location = search(commandName);
+        var newEntry = new Entry(location, now);
+        if (location != null) {
+            newEntry.hits = 1;
+        }
+        entries.put(commandName, newEntry);
+        return location;
+    }
+
+    /**
+     * Looks up {@code commandName} without counting it as a hit, as {@code hash name} does.
+     */
+    public synchronized boolean remember(String commandName) {
+        var location = find(commandName);
+        if (location != null) {
+            entries.get(commandName).hits--;
+        }
+        return location != null;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Returns the positive entries as {@code location -> hits}, in insertion order.
+     */
+    public synchronized Map<String, Integer> snapshot() {
+        revalidate();
+        var result = new LinkedHashMap<String, Integer>();
+        for (var entry : entries.values()) {
+            if (entry.location != null) {
+                result.put(entry.location, entry.hits);
+            }
+        }
+        return result;
+    }
+
+    private String search(String commandName) {
+        for (var dir : directories) {
+            var filePath = dir.resolve(commandName);
+            if (Files.isExecutable(filePath)) {
+                return filePath.toAbsolutePath().toString();
+            }
+        }
+        return null;
+    }
+
+    private void revalidate() {
+        var pathEnv = pathSupplier.get();
+        if (pathEnv == null) {
+            pathEnv = "";
+        }
+        var now = System.nanoTime();
+        if (!pathEnv.equals(currentPath)) {
+            currentPath = pathEnv;
+            var split = pathEnv.isEmpty() ? new String[0] : pathEnv.split(System.getProperty("path.separator"));
+            directories = new Path[split.length];
+            for (int i = 0; i < split.length; i++) {
+                directories[i] = Paths.get(split[i]);
+            }
+            mtimes = readMtimes();
+            lastMtimeCheck = now;
+            entries.clear();
+            return;
+        }
+
+        if (now - lastMtimeCheck < MTIME_CHECK_INTERVAL_NANOS) {
+            return;
+        }
+        lastMtimeCheck = now;
+        var latest = readMtimes();
+        for (int i = 0; i < latest.length; i++) {
+            if (!equals(latest[i], mtimes[i])) {
+                mtimes = latest;
+                entries.clear();
+                return;
+            }
+        }
+    }
+
+    private FileTime[] readMtimes() {
+        var result = new FileTime[directories.length];
+        for (int i = 0; i < directories.length; i++) {
+            try {
+                result[i] = Files.getLastModifiedTime(directories[i]);
+            } catch (IOException e) {
+                // Missing directories have no mtime; they are compared as null
+            }
+        }
+        return result;
+    }
+
+    private static boolean equals(FileTime a, FileTime b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private static class Entry {
+        final String location;
+        final long createdAt;
+        int hits;
+
+        Entry(String location, long createdAt) {
+            this.location = location;
+            this.createdAt = createdAt;
+        }
+    }
+
+}
@@ -0,0 +1,361 @@
+package org.winry;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * Single-pass lexer for command lines. Quotes and escapes are resolved and the pipe, list, redirection and
+ * background operators are recognized while scanning, so the parser only looks at token types. A
+ * {@code #} at the start of a word comments out the rest of the line. Tokens go into
+ * arrays that are reused from one line to the next, and a word without quotes, escapes or {@code $}
+ * is a plain substring of the line.
+ * <p>
+ * {@code $name}, {@code $?} and {@code ${name}} are expanded outside single quotes through the
+ * variable lookup; {@code ${...}} passes everything between the braces, so {@code ${PIPESTATUS[1]}}
+ * looks up {@code PIPESTATUS[1]}. Unset variables expand to nothing, and an unquoted word that
+ * expands to nothing is dropped.
+ * <p>
+ * A word with an unquoted {@code *}, {@code ?} or {@code [} also gets a {@link #pattern(int) glob
+ * pattern}, in which everything that was quoted, escaped or expanded is escaped with a backslash.
+ * <p>
+ * A {@link #deferred()} lexer leaves variables alone: a word that refers to one has a null
+ * {@link #word(int) value}, and its {@link #source(int) source} is lexed again with a lexer that
+ * expands, once the variables have their values.
+ */
+public class CommandLexer {
+
+    public enum TokenType {
+        WORD, PIPE, OUT, OUT_APPEND, ERR, ERR_APPEND, IN, HERE_STRING, BACKGROUND, AND, OR, SEMI, NEWLINE
+    }
+
+    private TokenType[] types = new TokenType[16];
+    private String[] words = new String[16];
+    private String[] patterns = new String[16];
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private String line;
+    private int count;
+    private final StringBuilder word = new StringBuilder();
+    // 当前单词里引号、转义和变量展开产生的字符范围，成对存放 [start, end)
+    private int[] literals = new int[8];
+    private int literalCount;
+    private final Function<String, String> variables;
+    private boolean expanded;
+    // 延迟模式下当前单词引用了变量
+    private boolean deferredReference;
+
+    public CommandLexer() {
+        this(name -> null);
+    }
+
+    public CommandLexer(Function<String, String> variables) {
+        this.variables = variables;
+    }
+
+    /**
+     * A lexer that keeps variable references for a later expansion.
+     */
+    public static CommandLexer deferred() {
+        return new CommandLexer(null);
+    }
+
+    /**
+     * Splits {@code line} into tokens and returns how many there are. The tokens stay valid until
+     * the next call.
+     */
+    public int lex(String line) {
+        Arrays.fill(words, 0, count, null);
+        Arrays.fill(patterns, 0, count, null);
+        count = 0;
+        this.line = line;
+        var length = line.length();
+        var i = 0;
+        while (i < length) {
+            var ch = line.charAt(i);
+            var start = i;
+            var before = count;
+            if (ch == ' ' || ch == '\t' || ch == '\r') {
+                i++;
+            } else if (ch == '#') {
+                var end = line.indexOf('\n', i);
+                i = end < 0 ? length : end;
+            } else if (ch == '\n') {
+                add(TokenType.NEWLINE, null);
+                i++;
+            } else if (ch == ';') {
+                add(TokenType.SEMI, null);
+                i++;
+            } else if (ch == '|') {
+                i = pair(line, i, TokenType.PIPE, TokenType.OR);
+            } else if (ch == '&') {
+                i = pair(line, i, TokenType.BACKGROUND, TokenType.AND);
+            } else if (ch == '>') {
+                i = redirect(line, i + 1, TokenType.OUT, TokenType.OUT_APPEND);
+            } else if (ch == '<') {
+                if (line.startsWith("<<<", i)) {
+                    add(TokenType.HERE_STRING, null);
+                    i += 3;
+                } else if (line.startsWith("<<", i)) {
+                    throw new IllegalArgumentException("Here-documents are not supported.");
+                } else {
+                    add(TokenType.IN, null);
+                    i++;
+                }
+            } else if ((ch == '1' || ch == '2') && i + 1 < length && line.charAt(i + 1) == '>') {
+                i = ch == '1'
+                        ? redirect(line, i + 2, TokenType.OUT, TokenType.OUT_APPEND)
+                        : redirect(line, i + 2, TokenType.ERR, TokenType.ERR_APPEND);
+            } else {
+                i = word(line, i);
+            }
+            if (count > before) {
+                starts[before] = start;
+                ends[before] = i;
+            }
+        }
+        return count;
+    }
+
+    private int pair(String line, int i, TokenType single, TokenType doubled) {
+        if (i + 1 < line.length() && line.charAt(i + 1) == line.charAt(i)) {
+            add(doubled, null);
+            return i + 2;
+        }
+        add(single, null);
+        return i + 1;
+    }
+
+    public TokenType type(int index) {
+        return types[index];
+    }
+
+    public String word(int index) {
+        return words[index];
+    }
+
+    /**
+     * The text of the token at {@code index} as it appears in the line.
+     */
+    public String source(int index) {
+        return line.substring(starts[index], ends[index]);
+    }
+
+    public int start(int index) {
+        return starts[index];
+    }
+
+    public int end(int index) {
+        return ends[index];
+    }
+
+    /**
+     * The word at {@code index} as a glob pattern, or null when it has no unquoted wildcard.
+     */
+    public String pattern(int index) {
+        return patterns[index];
+    }
+
+    private int redirect(String line, int i, TokenType truncate, TokenType append) {
+        if (i < line.length() && line.charAt(i) == '>') {
+            add(append, null);
+            return i + 1;
+        }
+        add(truncate, null);
+        return i;
+    }
+
+    private int word(String line, int start) {
+        var length = line.length();
+        var i = start;
+        // Start of the characters not yet copied; the word is a plain substring while nothing is copied
+        var pending = start;
+        var plain = true;
+        var quoted = false;
+        var glob = false;
+        expanded = false;
+        deferredReference = false;
+        word.setLength(0);
+        literalCount = 0;
+
+        while (i < length) {
+            var ch = line.charAt(i);
+            if (ch == ' ' || ch == '\t' || ch == '\r' || ch == '\n' || ch == '|' || ch == '>' || ch == '<' || ch == '&'
+                    || ch == ';') {
+                break;
+            }
+            if (ch != '\'' && ch != '"' && ch != '\\' && ch != '$') {
+                if (ch == '*' || ch == '?' || ch == '[') {
+                    glob = true;
+                }
+                i++;
+                continue;
+            }
+            word.append(line, pending, i);
+            plain = false;
+            var literalStart = word.length();
+            if (ch == '$') {
+                i = dollar(line, i);
+            } else if (ch == '\\') {
+                if (i + 1 < length) {
+                    word.append(line.charAt(i + 1));
+                }
+                // A trailing backslash is dropped
+                i = Math.min(i + 2, length);
+            } else if (ch == '\'') {
+                quoted = true;
+                var end = line.indexOf('\'', i + 1);
+                if (end < 0) {
+                    throw new IllegalArgumentException("Unclosed quote.");
+                }
+                word.append(line, i + 1, end);
+                i = end + 1;
+            } else {
+                quoted = true;
+                i = doubleQuoted(line, i + 1);
+            }
+            literal(literalStart);
+            pending = i;
+        }
+
+        if (deferredReference) {
+            // 值要等变量有了值才知道，只保留来源
+            add(TokenType.WORD, null);
+        } else if (plain) {
+            add(TokenType.WORD, line.substring(start, i));
+            if (glob) {
+                patterns[count - 1] = words[count - 1];
+            }
+        } else {
+            word.append(line, pending, i);
+            if (!word.isEmpty() || quoted || !expanded) {
+                add(TokenType.WORD, word.toString());
+                if (glob) {
+                    patterns[count - 1] = pattern();
+                }
+            }
+        }
+        return i;
+    }
+
+    private void literal(int start) {
+        if (start == word.length()) {
+            return;
+        }
+        if (literalCount == literals.length) {
+            literals = Arrays.copyOf(literals, literalCount * 2);
+        }
+        literals[literalCount++] = start;
+        literals[literalCount++] = word.length();
+    }
+
+    /**
+     * The current word with glob characters and backslashes in its literal ranges escaped.
+     */
+    private String pattern() {
+        var pattern = new StringBuilder(word.length() + 8);
+        var position = 0;
+        for (int r = 0; r < literalCount; r += 2) {
+            pattern.append(word, position, literals[r]);
+            for (int i = literals[r]; i < literals[r + 1]; i++) {
+                var ch = word.charAt(i);
+                if (ch == '*' || ch == '?' || ch == '[' || ch == ']' || ch == '\\') {
+                    pattern.append('\\');
+                }
+                pattern.append(ch);
+            }
+            position = literals[r + 1];
+        }
+        pattern.append(word, position, word.length());
+        return pattern.toString();
+    }
+
+    /**
+     * Expands the variable reference starting at the {@code $} at {@code i} into the current word
+     * and returns the index after it. A {@code $} that does not start a reference is kept.
+     */
+    private int dollar(String line, int i) {
+        var length = line.length();
+        var start = i + 1;
+        String name;
+        int next;
+        if (start < length && line.charAt(start) == '?') {
+            name = "?";
+            next = start + 1;
+        } else if (start < length && line.charAt(start) == '{') {
+            var end = line.indexOf('}', start + 1);
+            if (end < 0 || end == start + 1) {
+                throw new IllegalArgumentException("Bad substitution.");
+            }
+            name = line.substring(start + 1, end);
+            next = end + 1;
+        } else {
+            next = start;
+            while (next < length && isNameChar(line.charAt(next), next == start)) {
+                next++;
+            }
+            if (next == start) {
+                word.append('$');
+                return start;
+            }
+            name = line.substring(start, next);
+        }
+        if (variables == null) {
+            word.append(line, i, next);
+            deferredReference = true;
+            return next;
+        }
+        var value = variables.apply(name);
+        if (value != null) {
+            word.append(value);
+        }
+        expanded = true;
+        return next;
+    }
+
+    private static boolean isNameChar(char ch, boolean first) {
+        return ch == '_' || (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (!first && ch >= '0' && ch <= '9');
+    }
+
+    private int doubleQuoted(String line, int i) {
+        var length = line.length();
+        var pending = i;
+        while (i < length) {
+            var ch = line.charAt(i);
+            if (ch == '"') {
+                word.append(line, pending, i);
+                return i + 1;
+            }
+            if (ch == '$') {
+                word.append(line, pending, i);
+                i = dollar(line, i);
+                pending = i;
+            } else if (ch == '\\' && i + 1 < length) {
+                word.append(line, pending, i);
+                var next = line.charAt(i + 1);
+                if (next != '"' && next != '\\' && next != '$' && next != '`') {
+                    word.append('\\');
+                }
+                word.append(next);
+                i += 2;
+                pending = i;
+            } else {
+                i++;
+            }
+        }
+        throw new IllegalArgumentException("Unclosed quote.");
+    }
+
+    private void add(TokenType type, String value) {
+        if (count == types.length) {
+            types = Arrays.copyOf(types, count * 2);
+            words = Arrays.copyOf(words, count * 2);
+            patterns = Arrays.copyOf(patterns, count * 2);
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        types[count] = type;
+        words[count] = value;
+        count++;
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.winry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Where the time of one pipeline goes: parsing and expanding its words, executable lookup, starting
+ * it and waiting for it. Each {@link #lap(Phase)} charges the time since the previous lap to a phase.
+ * <p>
+ * User and system time are sampled from {@code /proc/self/stat}, whose totals include every child
+ * the JVM has reaped, so the difference between two samples covers the shell and the processes of
+ * the pipeline. Where {@code /proc} is not available the CPU time of the shell itself is taken from
+ * {@link ProcessHandle.Info} and reported as user time.
+ */
+public class CommandTimer {
+
+    public enum Phase {
+        PARSE, LOOKUP, SPAWN, WAIT
+    }
+
+    private static final Path PROC_STAT = Path.of("/proc/self/stat");
+    // USER_HZ，Linux 上 /proc 中的时间单位几乎总是 1/100 秒
+    private static final long NANOS_PER_TICK = 10_000_000L;
+
+    private final long start = System.nanoTime();
+    private long mark = start;
+    private long end;
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private long[] cpuStart;
+    private long userNanos;
+    private long sysNanos;
+
+    public void lap(Phase phase) {
+        var now = System.nanoTime();
+        phaseNanos[phase.ordinal()] += now - mark;
+        mark = now;
+    }
+
+    /**
+     * Starts measuring CPU time; only needed when the times are reported or logged.
+     */
+    public void startCpu() {
+        cpuStart = sampleCpu();
+    }
+
+    public void stop() {
+        end = System.nanoTime();
+        if (cpuStart != null) {
+            var cpuEnd = sampleCpu();
+            userNanos = cpuEnd[0] - cpuStart[0];
+            sysNanos = cpuEnd[1] - cpuStart[1];
+        }
+    }
+
+    public long realNanos() {
+        return end - start;
+    }
+
+    public long phaseNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long userNanos() {
+        return userNanos;
+    }
+
+    public long sysNanos() {
+        return sysNanos;
+    }
+
+    /**
+     * Writes the times in the format of bash's {@code time}, followed by the phase breakdown.
+     */
+    public void report(OutputStream out) throws IOException {
+        var sink = OutputSink.of(out);
+        sink.println("");
+        sink.println("real\t" + minutes(realNanos()));
+        sink.println("user\t" + minutes(userNanos));
+        sink.println("sys\t" + minutes(sysNanos));
+        for (var phase : Phase.values()) {
+            sink.println(String.format("%s\t%.6fs", phase.name().toLowerCase(), phaseNanos(phase) / 1e9));
+        }
+        sink.flush();
+    }
+
+    private static String minutes(long nanos) {
+        var millis = nanos / 1_000_000;
+        return String.format("%dm%d.%03ds", millis / 60_000, millis / 1000 % 60, millis % 1000);
+    }
+
+    /**
+     * Returns {user, sys} nanoseconds of the shell plus its reaped children.
+     */
+    private static long[] sampleCpu() {
+        try {
+            var stat = Files.readString(PROC_STAT);
+            // 第二个字段是带括号的进程名，可能包含空格，从最后一个 ')' 之后开始数
+            var fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            var user = Long.parseLong(fields[11]) + Long.parseLong(fields[13]);
+            var sys = Long.parseLong(fields[12]) + Long.parseLong(fields[14]);
+            return new long[]{user * NANOS_PER_TICK, sys * NANOS_PER_TICK};
+        } catch (IOException | RuntimeException e) {
+            var cpu = ProcessHandle.current().info().totalCpuDuration().map(d -> d.toNanos()).orElse(0L);
+            return new long[]{cpu, 0};
+        }
+    }
+
+}
@@ -0,0 +1,688 @@
+package org.winry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * In-process {@code cat}, {@code head}, {@code tail}, {@code wc} and fixed-string {@code grep}, so
+ * that pipelines of these commands run without starting a process. Files are memory-mapped;
+ * standard input is read in chunks, so {@code yes | head} still stops.
+ * <p>
+ * Each command only takes the common options. With any other option, or a {@code grep} pattern
+ * that is a regular expression, {@link #supports(String[])} is false and the shell runs the
+ * external binary instead.
+ */
+public enum CoreUtils implements Main.RunBuiltin {
+    cat {
+        @Override
+        boolean supports(String[] args) {
+            return Arrays.stream(args).noneMatch(CoreUtils::isOption);
+        }
+
+        @Override
+        public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            var output = new Output(out);
+            var status = 0;
+            for (var name : inputs(List.of(args))) {
+                var input = Input.open(name(), name, in, err);
+                if (input == null) {
+                    status = 1;
+                    continue;
+                }
+                try (input) {
+                    if (out instanceof OutputSink sink && input.transferTo(sink)) {
+                        continue;
+                    }
+                    input.forEachChunk((bytes, from, to) -> {
+                        output.out.write(bytes, from, to - from);
+                        return true;
+                    });
+                }
+            }
+            return status;
+        }
+    }, head {
+        @Override
+        boolean supports(String[] args) {
+            var options = LineCount.parse(args, false);
+            return options != null;
+        }
+
+        @Override
+        public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            var options = LineCount.parse(args, false);
+            var output = new Output(out);
+            var names = inputs(options.files);
+            var status = 0;
+            for (int i = 0; i < names.size(); i++) {
+                var input = Input.open(name(), names.get(i), in, err);
+                if (input == null) {
+                    status = 1;
+                    continue;
+                }
+                if (names.size() > 1) {
+                    output.print((i > 0 ? "\n" : "") + "==> " + displayName(names.get(i)) + " <==\n");
+                }
+                var remaining = new long[]{options.count};
+                try (input) {
+                    if (remaining[0] == 0) {
+                        continue;
+                    }
+                    input.forEachLine((bytes, start, end, terminated) -> {
+                        output.writeLine(bytes, start, end, terminated);
+                        return --remaining[0] > 0;
+                    });
+                }
+            }
+            return status;
+        }
+    }, tail {
+        @Override
+        boolean supports(String[] args) {
+            var options = LineCount.parse(args, true);
+            return options != null && options.files.size() <= 1;
+        }
+
+        @Override
+        public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            var options = LineCount.parse(args, true);
+            var output = new Output(out);
+            var input = Input.open(name(), inputs(options.files).getFirst(), in, err);
+            if (input == null) {
+                return 1;
+            }
+            try (input) {
+                if (options.fromStart) {
+                    // tail -n +N 从第 N 行开始输出
+                    var skip = new long[]{Math.max(0, options.count - 1)};
+                    input.forEachLine((bytes, start, end, terminated) -> {
+                        if (skip[0] > 0) {
+                            skip[0]--;
+                        } else {
+                            output.writeLine(bytes, start, end, terminated);
+                        }
+                        return true;
+                    });
+                } else if (options.count > 0 && !input.tailMapped(options.count, output)) {
+                    tailStream(input, options.count, output);
+                }
+            }
+            return 0;
+        }
+
+        private void tailStream(Input input, long count, Output output) throws IOException {
+            var lines = new ArrayDeque<byte[]>();
+            input.forEachLine((bytes, start, end, terminated) -> {
+                var line = new byte[end - start + (terminated ? 1 : 0)];
+                System.arraycopy(bytes, start, line, 0, end - start);
+                if (terminated) {
+                    line[line.length - 1] = '\n';
+                }
+                if (lines.size() == count) {
+                    lines.removeFirst();
+                }
+                lines.addLast(line);
+                return true;
+            });
+            for (var line : lines) {
+                output.out.write(line);
+            }
+        }
+    }, wc {
+        @Override
+        boolean supports(String[] args) {
+            return parseFlags(args, "lwc") != null;
+        }
+
+        @Override
+        public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            var flags = parseFlags(args, "lwc");
+            if (flags.letters.isEmpty()) {
+                flags.letters = "lwc";
+            }
+            var names = inputs(flags.operands);
+            var counts = new ArrayList<long[]>();
+            var labels = new ArrayList<String>();
+            var total = new long[3];
+            var width = 1;
+            var status = 0;
+            for (var name : names) {
+                var input = Input.open(name(), name, in, err);
+                if (input == null) {
+                    status = 1;
+                    continue;
+                }
+                try (input) {
+                    var count = input.count();
+                    for (int i = 0; i < 3; i++) {
+                        total[i] += count[i];
+                    }
+                    counts.add(count);
+                    labels.add(name.equals("-") && flags.operands.isEmpty() ? null : name);
+                    // 与 GNU wc 相同：列宽取决于文件大小，读标准输入时至少 7 位
+                    width = Math.max(width, input.isStream() ? 7 : Long.toString(input.size()).length());
+                }
+            }
+            if (names.size() > 1) {
+                counts.add(total);
+                labels.add("total");
+                width = Math.max(width, Long.toString(total[2]).length());
+            }
+            if (flags.letters.length() == 1 && names.size() == 1) {
+                width = 1;
+            }
+
+            var output = new Output(out);
+            for (int i = 0; i < counts.size(); i++) {
+                var line = new StringBuilder();
+                for (var column : new char[]{'l', 'w', 'c'}) {
+                    if (flags.letters.indexOf(column) >= 0) {
+                        if (!line.isEmpty()) {
+                            line.append(' ');
+                        }
+                        var value = Long.toString(counts.get(i)["lwc".indexOf(column)]);
+                        line.append(" ".repeat(Math.max(0, width - value.length()))).append(value);
+                    }
+                }
+                if (labels.get(i) != null) {
+                    line.append(' ').append(labels.get(i));
+                }
+                output.print(line.append('\n'));
+            }
+            return status;
+        }
+    }, grep {
+        @Override
+        boolean supports(String[] args) {
+            var flags = parseFlags(args, "vicnqlF");
+            if (flags == null || flags.operands.isEmpty()) {
+                return false;
+            }
+            var pattern = flags.operands.getFirst();
+            if (flags.has('i') && !pattern.chars().allMatch(c -> c < 128)) {
+                return false;
+            }
+            return flags.has('F') || pattern.chars().noneMatch(c -> ".[*^$\\".indexOf(c) >= 0);
+        }
+
+        @Override
+        public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            var flags = parseFlags(args, "vicnqlF");
+            var invert = flags.has('v');
+            var ignoreCase = flags.has('i');
+            var countOnly = flags.has('c');
+            var numbered = flags.has('n');
+            var quiet = flags.has('q');
+            var listFiles = flags.has('l');
+            var pattern = flags.operands.getFirst().getBytes(Charset.defaultCharset());
+            if (ignoreCase) {
+                for (int i = 0; i < pattern.length; i++) {
+                    pattern[i] = lower(pattern[i]);
+                }
+            }
+            var names = inputs(flags.operands.subList(1, flags.operands.size()));
+            var prefixed = names.size() > 1;
+            var output = new Output(out);
+            var matched = false;
+            var failed = false;
+
+            for (var name : names) {
+                var input = Input.open(name(), name, in, err);
+                if (input == null) {
+                    failed = true;
+                    continue;
+                }
+                var label = displayName(name);
+                var selected = new long[1];
+                var lineNumber = new long[1];
+                try (input) {
+                    input.forEachLine((bytes, start, end, terminated) -> {
+                        lineNumber[0]++;
+                        if (contains(bytes, start, end, pattern, ignoreCase) == invert) {
+                            return true;
+                        }
+                        selected[0]++;
+                        if (quiet || listFiles) {
+                            return false;
+                        }
+                        if (!countOnly) {
+                            if (prefixed) {
+                                output.print(label).print(":");
+                            }
+                            if (numbered) {
+                                output.print(Long.toString(lineNumber[0])).print(":");
+                            }
+                            output.writeLine(bytes, start, end, true);
+                        }
+                        return true;
+                    });
+                }
+                if (selected[0] > 0) {
+                    matched = true;
+                }
+                if (quiet && matched) {
+                    return 0;
+                }
+                if (listFiles && selected[0] > 0) {
+                    output.print(label).print("\n");
+                } else if (countOnly && !listFiles) {
+                    output.print(prefixed ? label + ":" + selected[0] + "\n" : selected[0] + "\n");
+                }
+            }
+            if (failed) {
+                return 2;
+            }
+            return matched ? 0 : 1;
+        }
+    };
+
+    private static final String STDIN = "-";
+    // 每次映射的窗口大小，更大的文件分段映射
+    private static final long MAP_WINDOW = 1L << 30;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Whether the in-process version understands {@code args}; if not, the external binary runs.
+     */
+    abstract boolean supports(String[] args);
+
+    /**
+     * Returns the command called {@code name} if it can run {@code args}, otherwise null.
+     */
+    static CoreUtils of(String name, String[] args) {
+        for (var command : values()) {
+            if (command.name().equals(name)) {
+                return command.supports(args) ? command : null;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isOption(String arg) {
+        return arg.length() > 1 && arg.startsWith("-");
+    }
+
+    private static List<String> inputs(List<String> files) {
+        return files.isEmpty() ? List.of(STDIN) : files;
+    }
+
+    private static String displayName(String name) {
+        return name.equals(STDIN) ? "(standard input)" : name;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private static boolean contains(byte[] bytes, int start, int end, byte[] pattern, boolean ignoreCase) {
+        if (pattern.length == 0) {
+            return true;
+        }
+        var first = pattern[0];
+        var last = end - pattern.length;
+        for (int i = start; i <= last; i++) {
+            var b = bytes[i];
+            if ((ignoreCase ? lower(b) : b) != first) {
+                continue;
+            }
+            var j = 1;
+            while (j < pattern.length) {
+                var c = bytes[i + j];
+                if ((ignoreCase ? lower(c) : c) != pattern[j]) {
+                    break;
+                }
+                j++;
+            }
+            if (j == pattern.length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Single-letter flags, possibly combined like {@code -lw}, followed by operands. Returns null
+     * for a flag outside {@code allowed}.
+     */
+    private static Flags parseFlags(String[] args, String allowed) {
+        var flags = new Flags();
+        var i = 0;
+        for (; i < args.length && isOption(args[i]); i++) {
+            if (args[i].equals("--")) {
+                i++;
+                break;
+            }
+            for (var c : args[i].substring(1).toCharArray()) {
+                if (allowed.indexOf(c) < 0) {
+                    return null;
+                }
+                if (flags.letters.indexOf(c) < 0) {
+                    flags.letters += c;
+                }
+            }
+        }
+        flags.operands = List.of(args).subList(i, args.length);
+        for (var operand : flags.operands) {
+            if (isOption(operand)) {
+                return null;
+            }
+        }
+        return flags;
+    }
+
+    private static class Flags {
+        String letters = "";
+        List<String> operands;
+
+        boolean has(char c) {
+            return letters.indexOf(c) >= 0;
+        }
+    }
+
+    /**
+     * {@code -n N}, {@code -nN} or {@code -N}, and for tail also {@code -n +N}. Defaults to 10.
+     */
+    private record LineCount(long count, boolean fromStart, List<String> files) {
+
+        static LineCount parse(String[] args, boolean allowFromStart) {
+            var count = 10L;
+            var fromStart = false;
+            var files = new ArrayList<String>();
+            for (int i = 0; i < args.length; i++) {
+                var arg = args[i];
+                String value;
+                if (arg.equals("-n")) {
+                    if (++i == args.length) {
+                        return null;
+                    }
+                    value = args[i];
+                } else if (arg.startsWith("-n")) {
+                    value = arg.substring(2);
+                } else if (isOption(arg) && Character.isDigit(arg.charAt(1))) {
+                    value = arg.substring(1);
+                } else if (isOption(arg)) {
+                    return null;
+                } else {
+                    files.add(arg);
+                    continue;
+                }
+                fromStart = value.startsWith("+");
+                if (fromStart && !allowFromStart) {
+                    return null;
+                }
+                try {
+                    count = Long.parseLong(fromStart ? value.substring(1) : value);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+                if (count < 0) {
+                    return null;
+                }
+            }
+            return new LineCount(count, fromStart, files);
+        }
+    }
+
+    interface ChunkHandler {
+        /**
+         * Handles {@code bytes} from {@code from} to {@code to}; returns false to stop reading.
+         */
+        boolean chunk(byte[] bytes, int from, int to) throws IOException;
+    }
+
+    interface LineHandler {
+        /**
+         * Handles the line in {@code bytes} from {@code start} to {@code end}, without its
+         * newline; {@code terminated} is false for a last line without one. Returns false to stop.
+         */
+        boolean line(byte[] bytes, int start, int end, boolean terminated) throws IOException;
+    }
+
+    /**
+     * A file, read through memory-mapped windows, or standard input. Either way the bytes are
+     * handed out in blocks of a reusable array: bulk copies out of the mapping and scanning an
+     * array are much faster than reading the mapping a byte at a time.
+     */
+    private static class Input implements AutoCloseable {
+        private final FileChannel file;
+        private final InputStream stream;
+
+        private Input(FileChannel file, InputStream stream) {
+            this.file = file;
+            this.stream = stream;
+        }
+
+        /**
+         * Opens {@code name}, or reports why it can't be read on {@code err} and returns null.
+         */
+        static Input open(String command, String name, InputStream in, OutputStream err) throws IOException {
+            if (name.equals(STDIN)) {
+                return new Input(null, in);
+            }
+            var path = Main.currentDirectory().resolve(name);
+            String problem;
+            if (Files.isDirectory(path)) {
+                problem = "Is a directory";
+            } else {
+                try {
+                    return new Input(FileChannel.open(path, StandardOpenOption.READ), null);
+                } catch (NoSuchFileException e) {
+                    problem = "No such file or directory";
+                } catch (AccessDeniedException e) {
+                    problem = "Permission denied";
+                }
+            }
+            var sink = OutputSink.of(err);
+            sink.println(command + ": " + name + ": " + problem);
+            sink.flush();
+            return null;
+        }
+
+        /**
+         * Files such as those in {@code /proc} report a size of 0 and have to be read like a stream.
+         */
+        boolean isStream() throws IOException {
+            return file == null || file.size() == 0;
+        }
+
+        long size() throws IOException {
+            return file.size();
+        }
+
+        /**
+         * Copies a regular file with {@link FileChannel#transferTo}; returns false for a stream.
+         */
+        boolean transferTo(OutputSink sink) throws IOException {
+            if (isStream()) {
+                return false;
+            }
+            sink.transferFrom(file, 0, file.size());
+            return true;
+        }
+
+        void forEachChunk(ChunkHandler handler) throws IOException {
+            var block = new byte[READ_BUFFER_SIZE];
+            if (!isStream()) {
+                var size = file.size();
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    var mapped = file.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position));
+                    for (int offset = 0, limit = mapped.limit(); offset < limit; offset += block.length) {
+                        var n = Math.min(block.length, limit - offset);
+                        mapped.get(offset, block, 0, n);
+                        if (!handler.chunk(block, 0, n)) {
+                            return;
+                        }
+                    }
+                }
+                return;
+            }
+            var source = file != null ? Channels.newInputStream(file) : stream;
+            int n;
+            while ((n = source.read(block)) >= 0) {
+                if (n > 0 && !handler.chunk(block, 0, n)) {
+                    return;
+                }
+            }
+        }
+
+        void forEachLine(LineHandler handler) throws IOException {
+            // 跨越两个块的行先拼接到 carry 中
+            var carry = new Output(null);
+            var stopped = new boolean[1];
+            forEachChunk((bytes, from, to) -> {
+                var start = from;
+                for (int i = from; i < to; i++) {
+                    if (bytes[i] != '\n') {
+                        continue;
+                    }
+                    boolean more;
+                    if (carry.length > 0) {
+                        carry.append(bytes, start, i);
+                        more = handler.line(carry.scratch, 0, carry.length, true);
+                        carry.length = 0;
+                    } else {
+                        more = handler.line(bytes, start, i, true);
+                    }
+                    if (!more) {
+                        stopped[0] = true;
+                        return false;
+                    }
+                    start = i + 1;
+                }
+                carry.append(bytes, start, to);
+                return true;
+            });
+            if (!stopped[0] && carry.length > 0) {
+                handler.line(carry.scratch, 0, carry.length, false);
+            }
+        }
+
+        /**
+         * Counts lines, words and bytes.
+         */
+        long[] count() throws IOException {
+            var counts = new long[3];
+            var inWord = new boolean[1];
+            forEachChunk((bytes, from, to) -> {
+                var lines = 0L;
+                var words = 0L;
+                var word = inWord[0];
+                for (int i = from; i < to; i++) {
+                    var b = bytes[i];
+                    if (b == '\n') {
+                        lines++;
+                    }
+                    if (isSpace(b)) {
+                        word = false;
+                    } else if (!word) {
+                        word = true;
+                        words++;
+                    }
+                }
+                inWord[0] = word;
+                counts[0] += lines;
+                counts[1] += words;
+                counts[2] += to - from;
+                return true;
+            });
+            return counts;
+        }
+
+        /**
+         * Writes the last {@code count} lines of a regular file by scanning the mapping backwards.
+         * Returns false for standard input, which has to be read from the start.
+         */
+        boolean tailMapped(long count, Output output) throws IOException {
+            if (isStream()) {
+                return false;
+            }
+            var size = file.size();
+            var from = Math.max(0, size - MAP_WINDOW);
+            var buffer = file.map(FileChannel.MapMode.READ_ONLY, from, size - from);
+            var end = buffer.limit();
+            var i = end;
+            if (buffer.get(i - 1) == '\n') {
+                i--;
+            }
+            for (var found = 0L; i > 0; i--) {
+                if (buffer.get(i - 1) == '\n' && ++found == count) {
+                    break;
+                }
+            }
+            output.write(buffer, i, end);
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Copies buffer ranges to the output through a reusable array; also used to collect the part of
+     * a line that spans two chunks.
+     */
+    private static class Output {
+        private final OutputStream out;
+        private byte[] scratch = new byte[8192];
+        private int length;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        Output print(CharSequence text) throws IOException {
+            out.write(text.toString().getBytes(Charset.defaultCharset()));
+            return this;
+        }
+
+        void write(ByteBuffer buffer, int start, int end) throws IOException {
+            while (start < end) {
+                var n = Math.min(end - start, READ_BUFFER_SIZE);
+                if (scratch.length < n) {
+                    scratch = new byte[n];
+                }
+                buffer.get(start, scratch, 0, n);
+                out.write(scratch, 0, n);
+                start += n;
+            }
+        }
+
+        void writeLine(byte[] bytes, int start, int end, boolean terminated) throws IOException {
+            out.write(bytes, start, end - start);
+            if (terminated) {
+                out.write('\n');
+            }
+        }
+
+        void append(byte[] bytes, int start, int end) {
+            var n = end - start;
+            if (length + n > scratch.length) {
+                scratch = Arrays.copyOf(scratch, Math.max(scratch.length * 2, length + n));
+            }
+            System.arraycopy(bytes, start, scratch, length, n);
+            length += n;
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+package org.winry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * LRU cache of sorted directory listings for filename completion.
+ * <p>
+ * A listing is reused until the directory's mtime changes. Names are kept sorted, so all names with
+ * a given prefix form one contiguous range that is found by binary search, and the longest common
+ * prefix of that range is the common prefix of its first and last entries.
+ * <p>
+ * A directory is listed on a background virtual thread. If that takes longer than
+ * {@link #LISTING_WAIT_MILLIS}, the caller gets a partial listing of the matching names read so
+ * far instead, and a later call gets the full listing once it is done.
+ */
+public class DirectoryListingCache {
+
+    private static final int MAX_DIRECTORIES = 32;
+    private static final long LISTING_WAIT_MILLIS = 50;
+    private static final int MAX_PARTIAL_NAMES = 1000;
+
+    private final Map<Path, Listing> listings = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest) {
+            return size() > MAX_DIRECTORIES;
+        }
+    };
+    private final Map<Path, Pending> pending = new HashMap<>();
+
+    /**
+     * Returns the listing of {@code directory}, or null if it cannot be read. If the directory is
+     * still being listed, the returned listing is not {@link Listing#complete() complete} and holds
+     * only names starting with {@code prefix}.
+     */
+    public Listing get(Path directory, String prefix) {
+        Pending listing;
+        synchronized (this) {
+            long mtime;
+            try {
+                mtime = Files.getLastModifiedTime(directory).toMillis();
+            } catch (IOException e) {
+                listings.remove(directory);
+                return null;
+            }
+            var cached = listings.get(directory);
+            if (cached != null && cached.mtime == mtime) {
+                return cached;
+            }
+            listing = pending.get(directory);
+            if (listing == null || listing.mtime != mtime) {
+                listing = new Pending(directory, mtime);
+                pending.put(directory, listing);
+                var started = listing;
+                Thread.ofVirtual().name("directory-listing").start(() -> list(started));
+            }
+        }
+        try {
+            return listing.result.get(LISTING_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return listing.partial(prefix);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    private void list(Pending listing) {
+        Listing result = null;
+        // DirectoryStream reads entries lazily and doesn't stat them
+        try (var stream = Files.newDirectoryStream(listing.directory)) {
+            for (var path : stream) {
+                listing.add(path.getFileName().toString());
+            }
+            String[] sorted;
+            synchronized (listing) {
+                sorted = listing.names.toArray(new String[0]);
+            }
+            Arrays.sort(sorted);
+            result = new Listing(listing.directory, listing.mtime, sorted, true);
+        } catch (IOException e) {
+            // 读不了的目录没有补全
+        } finally {
+            synchronized (this) {
+                if (pending.get(listing.directory) == listing) {
+                    pending.remove(listing.directory);
+                    if (result != null) {
+                        listings.put(listing.directory, result);
+                    }
+                }
+            }
+            listing.result.complete(result);
+        }
+    }
+
+    private static final class Pending {
+        private final Path directory;
+        private final long mtime;
+        private final List<String> names = new ArrayList<>();
+        private final CompletableFuture<Listing> result = new CompletableFuture<>();
+
+        private Pending(Path directory, long mtime) {
+            this.directory = directory;
+            this.mtime = mtime;
+        }
+
+        private synchronized void add(String name) {
+            names.add(name);
+        }
+
+        private Listing partial(String prefix) {
+            var matches = new ArrayList<String>();
+            synchronized (this) {
+                for (int i = 0; i < names.size() && matches.size() < MAX_PARTIAL_NAMES; i++) {
+                    if (names.get(i).startsWith(prefix)) {
+                        matches.add(names.get(i));
+                    }
+                }
+            }
+            var sorted = matches.toArray(new String[0]);
+            Arrays.sort(sorted);
+            return new Listing(directory, mtime, sorted, false);
+        }
+    }
+
+    public static final class Listing {
+        private final Path directory;
+        private final long mtime;
+        private final String[] names;
+        private final boolean complete;
+
+        private Listing(Path directory, long mtime, String[] names, boolean complete) {
+            this.directory = directory;
+            this.mtime = mtime;
+            this.names = names;
+            this.complete = complete;
+        }
+
+        public Path directory() {
+            return directory;
+        }
+
+        /**
+         * Returns false if the directory was still being listed, so this holds only some names.
+         */
+        public boolean complete() {
+            return complete;
+        }
+
+        public String name(int index) {
+            return names[index];
+        }
+
+        /**
+         * Returns the index of the first name that is not less than {@code prefix}.
+         */
+        public int from(String prefix) {
+            var index = Arrays.binarySearch(names, prefix);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        /**
+         * Returns the index after the last name starting with {@code prefix}.
+         */
+        public int to(String prefix) {
+            int low = from(prefix);
+            int high = names.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (names[mid].startsWith(prefix)) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Returns the longest common prefix of the names in {@code [from, to)}.
+         */
+        public String commonPrefix(int from, int to) {
+            var first = names[from];
+            var last = names[to - 1];
+            int length = 0;
+            while (length < first.length() && length < last.length()
+                    && first.charAt(length) == last.charAt(length)) {
+                length++;
+            }
+            return first.substring(0, length);
+        }
+    }
+
+}
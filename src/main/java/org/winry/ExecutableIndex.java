@@ -0,0 +1,290 @@
+package org.winry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Index of the executables on {@code PATH} used for command completion.
+ * <p>
+ * Scanning happens on a background virtual thread. After each directory is listed a new
+ * {@link Trie} is published with that directory's names added to the previous one, whose nodes it
+ * shares, so completion works from partial results while a slow directory is still being listed.
+ * Later refreshes only re-list directories whose mtime changed, and publish nothing when none did.
+ * A directory that lost names, or a new {@code PATH}, rebuilds the Trie instead.
+ * <p>
+ * The listing is also persisted to a binary snapshot keyed by {@code PATH} and directory mtimes.
+ * The first background refresh memory-maps the snapshot and publishes it before any directory is
+ * listed, then revalidates it like any other cached listing.
+ */
+public class ExecutableIndex {
+
+    private static final long REFRESH_INTERVAL_NANOS = 1_000_000_000L;
+    private static final int SNAPSHOT_MAGIC = 0x53484958; // "SHIX"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final Supplier<String> pathSupplier;
+    private final List<String> builtins;
+    private final Path snapshotFile;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile Trie trie;
+    private volatile long lastRefresh;
+
+    // Only touched by the background thread that holds `refreshing`; the flag orders one such
+    // thread after the next
+    private String currentPath;
+    private Map<Path, Directory> directories = new LinkedHashMap<>();
+
+    public ExecutableIndex(Supplier<String> pathSupplier, List<String> builtins) {
+        this(pathSupplier, builtins, null);
+    }
+
+    /**
+     * @param snapshotFile where the listing is persisted between sessions, or null to disable
+     */
+    public ExecutableIndex(Supplier<String> pathSupplier, List<String> builtins, Path snapshotFile) {
+        this.pathSupplier = pathSupplier;
+        this.builtins = builtins;
+        this.snapshotFile = snapshotFile;
+        this.trie = build();
+    }
+
+    /**
+     * Returns the default snapshot location under {@code $XDG_CACHE_HOME} or {@code ~/.cache}.
+     */
+    public static Path defaultSnapshotFile() {
+        var cacheHome = System.getenv("XDG_CACHE_HOME");
+        if (cacheHome == null || cacheHome.isEmpty()) {
+            var home = System.getenv("HOME");
+            if (home == null) {
+                return null;
+            }
+            cacheHome = Path.of(home, ".cache").toString();
+        }
+        return Path.of(cacheHome, "codecrafters-shell", "executables.idx");
+    }
+
+    public Trie trie() {
+        return trie;
+    }
+
+    /**
+     * Starts loading the snapshot, if it matches the current {@code PATH}, and the initial scan in
+     * the background and returns.
+     */
+    public void start() {
+        refreshAsync(snapshotFile != null);
+    }
+
+    /**
+     * Re-checks the {@code PATH} directories in the background, at most once per interval.
+     */
+    public void refreshIfStale() {
+        if (System.nanoTime() - lastRefresh >= REFRESH_INTERVAL_NANOS) {
+            refreshAsync(false);
+        }
+    }
+
+    private void refreshAsync(boolean loadSnapshot) {
+        if (!refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("executable-index").start(() -> {
+            try {
+                if (loadSnapshot) {
+                    loadSnapshot();
+                }
+                refresh();
+            } finally {
+                lastRefresh = System.nanoTime();
+                refreshing.set(false);
+            }
+        });
+    }
+
+    private void refresh() {
+        var pathEnv = pathSupplier.get();
+        if (pathEnv == null) {
+            pathEnv = "";
+        }
+        var changed = false;
+        var dirty = false;
+        var published = trie;
+        if (!pathEnv.equals(currentPath)) {
+            currentPath = pathEnv;
+            var updated = new LinkedHashMap<Path, Directory>();
+            if (!pathEnv.isEmpty()) {
+                for (var dir : pathEnv.split(System.getProperty("path.separator"))) {
+                    var path = Paths.get(dir);
+                    updated.put(path, directories.getOrDefault(path, new Directory()));
+                }
+            }
+            directories = updated;
+            changed = true;
+            // 不在新 PATH 里的目录的名字要去掉
+            published = build();
+            trie = published;
+        }
+
+        for (var entry : directories.entrySet()) {
+            var directory = entry.getValue();
+            var mtime = mtimeOf(entry.getKey());
+            if (directory.names != null && mtime == directory.mtime) {
+                continue;
+            }
+            // Read the mtime before listing so a change made during the listing is seen next time
+            var previous = directory.names;
+            directory.mtime = mtime;
+            directory.names = list(entry.getKey());
+            dirty = true;
+            if (previous == null || new HashSet<>(directory.names).containsAll(previous)) {
+                published = published.with(directory.names);
+            } else {
+                // A removed name may still be in another directory, so start again from all of them
+                published = build();
+            }
+            trie = published;
+        }
+
+        if ((changed || dirty) && snapshotFile != null) {
+            saveSnapshot();
+        }
+    }
+
+    private Trie build() {
+        var result = new Trie();
+        for (var directory : directories.values()) {
+            if (directory.names != null) {
+                for (var name : directory.names) {
+                    result.insert(name);
+                }
+            }
+        }
+        for (var name : builtins) {
+            result.insert(name);
+        }
+        return result;
+    }
+
+    private void loadSnapshot() {
+        var pathEnv = pathSupplier.get();
+        if (pathEnv == null || !Files.isRegularFile(snapshotFile)) {
+            return;
+        }
+        try (var channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != SNAPSHOT_MAGIC || buffer.getInt() != SNAPSHOT_VERSION
+                    || !readString(buffer).equals(pathEnv)) {
+                return;
+            }
+            var loaded = new LinkedHashMap<Path, Directory>();
+            var directoryCount = buffer.getInt();
+            for (int i = 0; i < directoryCount; i++) {
+                var directory = new Directory();
+                var path = Paths.get(readString(buffer));
+                directory.mtime = buffer.getLong();
+                var nameCount = buffer.getInt();
+                directory.names = new ArrayList<>(nameCount);
+                for (int j = 0; j < nameCount; j++) {
+                    directory.names.add(readString(buffer));
+                }
+                loaded.put(path, directory);
+            }
+            currentPath = pathEnv;
+            directories = loaded;
+            trie = build();
+        } catch (IOException | RuntimeException e) {
+            // A missing, stale or corrupt snapshot just means a full scan
+        }
+    }
+
+    private void saveSnapshot() {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            writeString(out, currentPath);
+            out.writeInt(directories.size());
+            for (var entry : directories.entrySet()) {
+                var directory = entry.getValue();
+                var names = directory.names == null ? List.<String>of() : directory.names;
+                writeString(out, entry.getKey().toString());
+                out.writeLong(directory.mtime);
+                out.writeInt(names.size());
+                for (var name : names) {
+                    writeString(out, name);
+                }
+            }
+
+            // Write next to the snapshot and rename, so readers never see a partial file
+            Files.createDirectories(snapshotFile.getParent());
+            var temp = Files.createTempFile(snapshotFile.getParent(), "executables", ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                Files.move(temp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                // Gone after a successful move; otherwise don't leave it behind
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            // The snapshot is only an optimisation
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        var bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static List<String> list(Path directoryPath) {
+        var names = new ArrayList<String>();
+        if (Files.isDirectory(directoryPath)) {
+            try (var stream = Files.list(directoryPath)) {
+                stream.filter(Files::isExecutable)
+                        .forEach(path -> names.add(path.getFileName().toString()));
+            } catch (IOException e) {
+                // Ignore directories that cannot be read
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns the directory mtime in milliseconds, the precision kept in the snapshot, or -1.
+     */
+    private static long mtimeOf(Path directoryPath) {
+        try {
+            return Files.getLastModifiedTime(directoryPath).toMillis();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static class Directory {
+        long mtime = -1;
+        List<String> names;
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.winry;
+
+import org.jline.reader.CompletingParsedLine;
+import org.jline.reader.LineReader;
+import org.jline.reader.impl.CompletionMatcherImpl;
+
+import java.util.Map;
+
+/**
+ * JLine's matcher drops candidates that don't start with the typed word. This one keeps JLine's
+ * matchers and adds a last one that accepts every candidate, so the fuzzy matches produced by
+ * {@link MyCompleter} are shown when nothing matches by prefix.
+ */
+public class FuzzyCompletionMatcher extends CompletionMatcherImpl {
+
+    @Override
+    protected void defaultMatchers(Map<LineReader.Option, Boolean> options, boolean prefix, CompletingParsedLine line,
+                                   boolean caseInsensitive, int errors, String originalGroupName) {
+        super.defaultMatchers(options, prefix, line, caseInsensitive, errors, originalGroupName);
+        matchers.add(simpleMatcher(candidate -> true));
+    }
+
+}
@@ -0,0 +1,346 @@
+package org.winry;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Pathname expansion for {@code *}, {@code ?}, {@code [...]} and a recursive {@code **} segment.
+ * A backslash makes the next character literal, and names starting with {@code .} only match a
+ * segment that starts with one.
+ * <p>
+ * A pattern is split on {@code /} and compiled once into per-segment matchers. Segments without
+ * wildcards are resolved directly; the others list their directory with a
+ * {@link DirectoryStream}. The current directory is listed on the calling thread, and every
+ * subdirectory that has to be read goes to a virtual thread, so a deep {@code **} keeps many
+ * {@code readdir} and {@code stat} calls in flight at once.
+ */
+public class Glob {
+
+    private static final int CACHE_SIZE = 256;
+    // 同时打开的目录数，避免大目录树耗尽文件描述符
+    private static final int MAX_OPEN_DIRECTORIES = 64;
+    private static final Map<String, Glob> cache = new ConcurrentHashMap<>();
+    private static final ExecutorService walkers = Executors.newVirtualThreadPerTaskExecutor();
+    private static final Semaphore openDirectories = new Semaphore(MAX_OPEN_DIRECTORIES);
+
+    private final boolean absolute;
+    private final Segment[] segments;
+    // 以 / 结尾的模式只匹配目录
+    private final boolean directoriesOnly;
+
+    private Glob(boolean absolute, Segment[] segments, boolean directoriesOnly) {
+        this.absolute = absolute;
+        this.segments = segments;
+        this.directoriesOnly = directoriesOnly;
+    }
+
+    /**
+     * Returns the compiled form of {@code pattern}, reusing an earlier compilation of the same text.
+     */
+    static Glob compile(String pattern) {
+        var glob = cache.get(pattern);
+        if (glob == null) {
+            if (cache.size() >= CACHE_SIZE) {
+                cache.clear();
+            }
+            glob = parse(pattern);
+            cache.put(pattern, glob);
+        }
+        return glob;
+    }
+
+    private static Glob parse(String pattern) {
+        var segments = new ArrayList<Segment>();
+        for (var text : pattern.split("/")) {
+            if (text.isEmpty()) {
+                continue;
+            }
+            if (text.equals("**")) {
+                if (segments.isEmpty() || segments.getLast().kind != Kind.RECURSIVE) {
+                    segments.add(new Segment(Kind.RECURSIVE, null, null, false));
+                }
+                continue;
+            }
+            var regex = new StringBuilder();
+            var literal = new StringBuilder();
+            var wildcard = false;
+            for (int i = 0; i < text.length(); i++) {
+                var ch = text.charAt(i);
+                if (ch == '\\' && i + 1 < text.length()) {
+                    i++;
+                    literal.append(text.charAt(i));
+                    regex.append(Pattern.quote(String.valueOf(text.charAt(i))));
+                } else if (ch == '*') {
+                    wildcard = true;
+                    regex.append(".*");
+                } else if (ch == '?') {
+                    wildcard = true;
+                    regex.append('.');
+                } else if (ch == '[' && bracketEnd(text, i) > 0) {
+                    wildcard = true;
+                    var end = bracketEnd(text, i);
+                    bracket(text, i + 1, end, regex);
+                    i = end;
+                } else {
+                    literal.append(ch);
+                    regex.append(Pattern.quote(String.valueOf(ch)));
+                }
+            }
+            var dotted = text.startsWith(".") || text.startsWith("\\.");
+            segments.add(wildcard
+                    ? new Segment(Kind.WILDCARD, null, Pattern.compile(regex.toString(), Pattern.DOTALL), dotted)
+                    : new Segment(Kind.LITERAL, literal.toString(), null, dotted));
+        }
+        return new Glob(pattern.startsWith("/"), segments.toArray(Segment[]::new), pattern.endsWith("/"));
+    }
+
+    /**
+     * Index of the {@code ]} closing the bracket expression at {@code start}, or -1. A {@code ]}
+     * right after the opening {@code [} or {@code [!} is part of the set.
+     */
+    private static int bracketEnd(String text, int start) {
+        var i = start + 1;
+        if (i < text.length() && (text.charAt(i) == '!' || text.charAt(i) == '^')) {
+            i++;
+        }
+        if (i < text.length() && text.charAt(i) == ']') {
+            i++;
+        }
+        while (i < text.length()) {
+            var ch = text.charAt(i);
+            if (ch == '[' && text.startsWith("[:", i)) {
+                var close = text.indexOf(":]", i + 2);
+                if (close > 0) {
+                    i = close + 2;
+                    continue;
+                }
+            }
+            if (ch == '\\') {
+                i++;
+            } else if (ch == ']') {
+                return i;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    private static void bracket(String text, int from, int to, StringBuilder regex) {
+        regex.append('[');
+        var first = from;
+        if (text.charAt(first) == '!' || text.charAt(first) == '^') {
+            regex.append('^');
+            first++;
+        }
+        var i = first;
+        while (i < to) {
+            var ch = text.charAt(i);
+            if (ch == '[' && text.startsWith("[:", i)) {
+                var close = text.indexOf(":]", i + 2);
+                if (close > 0 && close < to) {
+                    regex.append(characterClass(text.substring(i + 2, close)));
+                    i = close + 2;
+                    continue;
+                }
+            }
+            if (ch == '\\' && i + 1 < to) {
+                ch = text.charAt(++i);
+            }
+            if (ch == '-' && i > first && i + 1 < to) {
+                regex.append('-');
+            } else if (Character.isLetterOrDigit(ch)) {
+                regex.append(ch);
+            } else {
+                regex.append('\\').append(ch);
+            }
+            i++;
+        }
+        regex.append(']');
+    }
+
+    private static String characterClass(String name) {
+        return switch (name) {
+            case "alpha" -> "\\p{Alpha}";
+            case "digit" -> "\\p{Digit}";
+            case "alnum" -> "\\p{Alnum}";
+            case "upper" -> "\\p{Upper}";
+            case "lower" -> "\\p{Lower}";
+            case "space" -> "\\p{Space}";
+            case "punct" -> "\\p{Punct}";
+            case "xdigit" -> "\\p{XDigit}";
+            // 和 bash 一样，不认识的类什么也不匹配
+            default -> "[^\\s\\S]";
+        };
+    }
+
+    /**
+     * Expands the pattern against {@code directory}, returning the matching paths sorted, relative
+     * to it unless the pattern is absolute. Fails once more than {@code limit} paths match.
+     */
+    List<String> expand(Path directory, int limit) {
+        var walk = new Walk(limit);
+        var root = absolute ? directory.getRoot() : directory;
+        walk.directory(root, absolute ? "/" : "", 0);
+        walk.pending.arriveAndAwaitAdvance();
+        if (walk.count.get() > limit) {
+            throw new IllegalArgumentException("Too many matches, the limit is " + limit + ".");
+        }
+        var matches = new ArrayList<>(walk.matches);
+        matches.sort(null);
+        return matches;
+    }
+
+    private enum Kind {
+        LITERAL, WILDCARD, RECURSIVE
+    }
+
+    private record Segment(Kind kind, String name, Pattern pattern, boolean dotted) {
+
+        boolean matches(String fileName) {
+            if (kind == Kind.LITERAL) {
+                return name.equals(fileName);
+            }
+            if (fileName.startsWith(".") && !dotted) {
+                return false;
+            }
+            return kind == Kind.RECURSIVE || pattern.matcher(fileName).matches();
+        }
+    }
+
+    /**
+     * One expansion: the matches found so far and the directories still being read.
+     */
+    private class Walk {
+        private final int limit;
+        private final ConcurrentLinkedQueue<String> matches = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+        // 调用线程占一个名额，每个还没读完的子目录各占一个
+        private final Phaser pending = new Phaser(1);
+
+        Walk(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Matches segment {@code index} and everything after it inside {@code directory}, whose
+         * path as typed is {@code prefix}.
+         */
+        void directory(Path directory, String prefix, int index) {
+            if (count.get() > limit) {
+                return;
+            }
+            if (index == segments.length) {
+                add(prefix);
+                return;
+            }
+            var segment = segments[index];
+            if (segment.kind == Kind.LITERAL) {
+                // 没有通配符的部分不需要列目录
+                var child = directory.resolve(segment.name);
+                if (index + 1 == segments.length) {
+                    if (Files.exists(child, LinkOption.NOFOLLOW_LINKS)
+                            && (!directoriesOnly || Files.isDirectory(child))) {
+                        add(prefix + segment.name);
+                    }
+                } else if (Files.isDirectory(child)) {
+                    directory(child, prefix + segment.name + "/", index + 1);
+                }
+                return;
+            }
+            list(directory, prefix, index);
+        }
+
+        private void list(Path directory, String prefix, int index) {
+            var segment = segments[index];
+            var recursive = segment.kind == Kind.RECURSIVE;
+            // ** 可以匹配零层目录，这时由下一个部分匹配这个目录里的名字
+            var next = recursive ? index + 1 : index;
+            if (recursive && next < segments.length && segments[next].kind == Kind.LITERAL) {
+                directory(directory, prefix, next);
+            }
+            try {
+                openDirectories.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try (var entries = Files.newDirectoryStream(directory)) {
+                for (var entry : entries) {
+                    if (count.get() > limit) {
+                        return;
+                    }
+                    var name = entry.getFileName().toString();
+                    if (recursive && !name.startsWith(".") && isDirectory(entry, false)) {
+                        fork(entry, prefix + name + "/", index);
+                    }
+                    if (next == segments.length) {
+                        // 结尾的 ** 匹配所有文件和目录
+                        if (!name.startsWith(".") && (!directoriesOnly || isDirectory(entry, true))) {
+                            add(prefix + name);
+                        }
+                        continue;
+                    }
+                    var target = segments[next];
+                    if (target.kind == Kind.LITERAL || !target.matches(name)) {
+                        continue;
+                    }
+                    if (next + 1 == segments.length) {
+                        if (!directoriesOnly || isDirectory(entry, true)) {
+                            add(prefix + name);
+                        }
+                    } else if (isDirectory(entry, true)) {
+                        fork(entry, prefix + name + "/", next + 1);
+                    }
+                }
+            } catch (IOException e) {
+                // 读不了的目录没有匹配，和 bash 一样
+            } finally {
+                openDirectories.release();
+            }
+        }
+
+        private void fork(Path directory, String prefix, int index) {
+            pending.register();
+            walkers.execute(() -> {
+                try {
+                    directory(directory, prefix, index);
+                } finally {
+                    pending.arriveAndDeregister();
+                }
+            });
+        }
+
+        private void add(String match) {
+            if (count.incrementAndGet() <= limit) {
+                matches.add(directoriesOnly ? match + "/" : match);
+            }
+        }
+
+        private static boolean isDirectory(Path path, boolean followLinks) {
+            try {
+                var attributes = followLinks
+                        ? Files.readAttributes(path, BasicFileAttributes.class)
+                        : Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return attributes.isDirectory();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+}
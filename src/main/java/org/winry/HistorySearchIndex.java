@@ -0,0 +1,177 @@
+package org.winry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Trigram index over the positions of a {@link HistoryStore}, for reverse search.
+ * <p>
+ * The index keeps no entry text: each trigram lists the positions of the entries containing it in
+ * increasing order, and candidates are read back from the store to be verified. Search walks a
+ * posting list from its end, so matches come out most recent first and it stops after
+ * {@code limit} of them. Repeated entries are skipped by comparing a 64-bit hash of the candidate
+ * with the latest position that hash was seen at. New history entries are indexed incrementally
+ * before each search.
+ */
+public class HistorySearchIndex {
+
+    private final HistoryStore historyStore;
+    private final Map<Long, Postings> postings = new HashMap<>();
+    private final LatestPositions latest = new LatestPositions();
+    private int indexed;
+
+    public HistorySearchIndex(HistoryStore historyStore) {
+        this.historyStore = historyStore;
+    }
+
+    /**
+     * Indexes the existing history on a background virtual thread.
+     */
+    public void catchUpAsync() {
+        Thread.ofVirtual().name("history-index").start(this::catchUp);
+    }
+
+    /**
+     * Returns up to {@code limit} distinct entries containing {@code query}, most recent first.
+     */
+    public synchronized List<String> search(String query, int limit) {
+        catchUp();
+        var results = new ArrayList<String>(Math.min(limit, 16));
+        if (query.length() < 3) {
+            // 太短没有三元组，从最新的一条往前找，够数就停
+            for (int position = indexed - 1; position >= 0 && results.size() < limit; position--) {
+                verify(position, query, results);
+            }
+            return results;
+        }
+        var candidates = shortestPostings(query);
+        if (candidates == null) {
+            return results;
+        }
+        for (int i = candidates.size - 1; i >= 0 && results.size() < limit; i--) {
+            verify(candidates.positions[i], query, results);
+        }
+        return results;
+    }
+
+    /**
+     * Adds the entry at {@code position} if it contains {@code query} and is its latest occurrence.
+     */
+    private void verify(int position, String query, List<String> results) {
+        var entry = historyStore.get(position);
+        if (entry.contains(query) && latest.get(hash(entry)) == position) {
+            results.add(entry);
+        }
+    }
+
+    private synchronized void catchUp() {
+        var size = historyStore.size();
+        for (; indexed < size; indexed++) {
+            add(historyStore.get(indexed), indexed);
+        }
+    }
+
+    private void add(String entry, int position) {
+        latest.put(hash(entry), position);
+        for (int i = 0; i + 3 <= entry.length(); i++) {
+            postings.computeIfAbsent(trigram(entry, i), key -> new Postings()).add(position);
+        }
+    }
+
+    private Postings shortestPostings(String query) {
+        Postings shortest = null;
+        for (int i = 0; i + 3 <= query.length(); i++) {
+            var candidate = postings.get(trigram(query, i));
+            if (candidate == null) {
+                return null;
+            }
+            if (shortest == null || candidate.size < shortest.size) {
+                shortest = candidate;
+            }
+        }
+        return shortest;
+    }
+
+    private static long trigram(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /**
+     * FNV-1a over the UTF-16 chars, never 0 so that 0 can mark an empty slot.
+     */
+    private static long hash(String s) {
+        var h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h != 0 ? h : 1;
+    }
+
+    private static class Postings {
+        int[] positions = new int[4];
+        int size;
+
+        void add(int position) {
+            // Positions arrive in increasing order, so a repeated trigram in one entry is the last one
+            if (size > 0 && positions[size - 1] == position) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            positions[size++] = position;
+        }
+    }
+
+    /**
+     * Open-addressing map from an entry's hash to the latest position it was seen at.
+     */
+    private static class LatestPositions {
+        private long[] keys = new long[1024];
+        private int[] values = new int[1024];
+        private int size;
+
+        int get(long key) {
+            var mask = keys.length - 1;
+            for (int i = (int) (key ^ key >>> 32) & mask; keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return -1;
+        }
+
+        void put(long key, int value) {
+            if (size * 2 >= keys.length) {
+                grow();
+            }
+            var mask = keys.length - 1;
+            var i = (int) (key ^ key >>> 32) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        private void grow() {
+            var oldKeys = keys;
+            var oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldKeys.length * 2];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,546 @@
+package org.winry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command history backed by the history file.
+ * <p>
+ * Files are memory-mapped and indexed by line offset the first time they are touched, so the
+ * entries are never all decoded into strings. If another process truncates a mapped file, as bash
+ * does to enforce {@code HISTFILESIZE}, only the lines still in it are kept. Entries typed in this
+ * session are appended to the history file as soon as they are added, so a crash loses nothing
+ * that reached the kernel; with {@link SyncPolicy#always} each append is also forced to disk.
+ */
+public class HistoryStore implements Closeable {
+
+    public enum SyncPolicy {
+        always, never;
+
+        static SyncPolicy of(String name) {
+            return "always".equals(name) ? always : never;
+        }
+    }
+
+    private final Path historyFile;
+    private final SyncPolicy syncPolicy;
+    private final List<Segment> segments = new ArrayList<>();
+    private FileChannel appendChannel;
+    private MemorySegment tail;
+    // Entries before this index have been written by history -a; -1 until the first call
+    private int appendMark = -1;
+    private List<MappedSegment> loaded = List.of();
+
+    private HistoryStore(Path historyFile, SyncPolicy syncPolicy) {
+        this.historyFile = historyFile;
+        this.syncPolicy = syncPolicy;
+    }
+
+    /**
+     * Opens the history backed by {@code historyFile}, or an in-memory history if it is null.
+     */
+    public static HistoryStore open(Path historyFile, SyncPolicy syncPolicy) throws IOException {
+        var store = new HistoryStore(historyFile, syncPolicy);
+        if (historyFile != null) {
+            if (Files.exists(historyFile)) {
+                store.loaded = MappedSegment.map(historyFile);
+                store.segments.addAll(store.loaded);
+            }
+            store.openAppendChannel();
+        }
+        return store;
+    }
+
+    public synchronized int size() {
+        var size = 0;
+        for (var segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public synchronized String get(int index) {
+        for (var segment : segments) {
+            var size = segment.size();
+            if (index < size) {
+                return segment.get(index);
+            }
+            index -= size;
+        }
+        throw new IndexOutOfBoundsException(index);
+    }
+
+    /**
+     * The last {@code n} entries, oldest first, read from the end of the history.
+     */
+    public synchronized List<String> tail(int n) {
+        var result = new ArrayList<String>();
+        for (int i = segments.size() - 1; i >= 0 && result.size() < n; i--) {
+            result.addAll(0, segments.get(i).tail(n - result.size()));
+        }
+        return result;
+    }
+
+    /**
+     * Adds an entry typed in this session and appends it to the history file.
+     */
+    public synchronized void add(String entry) throws IOException {
+        if (tail == null) {
+            tail = new MemorySegment();
+            segments.add(tail);
+        }
+        tail.entries.add(entry);
+        if (appendChannel != null) {
+            appendChannel.write(encode(entry));
+            if (syncPolicy == SyncPolicy.always) {
+                appendChannel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Adds every line of {@code file} to the history, as {@code history -r} does.
+     */
+    public synchronized void read(Path file) throws IOException {
+        segments.addAll(MappedSegment.map(file));
+        tail = null;
+    }
+
+    /**
+     * Replaces {@code file} with the whole history, as {@code history -w} does.
+     */
+    public synchronized void write(Path file) throws IOException {
+        var target = file.toAbsolutePath();
+        var rewritesHistoryFile = isHistoryFile(target);
+        // Mapped segments may be backed by the target, so never truncate it in place
+        Path temp;
+        try {
+            temp = Files.createTempFile(target.getParent(), ".history", ".tmp");
+        } catch (NoSuchFileException e) {
+            // 报告目标文件，而不是临时文件的名字
+            throw new NoSuchFileException(target.toString());
+        } catch (AccessDeniedException e) {
+            throw new AccessDeniedException(target.toString());
+        }
+        try {
+            if (Files.exists(target)) {
+                // 临时文件总是 0600，保留原文件的权限
+                copyPermissions(target, temp);
+            }
+            try (var channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                for (var segment : segments) {
+                    segment.writeTo(channel, 0);
+                }
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (rewritesHistoryFile) {
+            appendChannel.close();
+            openAppendChannel();
+        }
+    }
+
+    /**
+     * Appends the entries added since the last call to {@code file}, as {@code history -a} does.
+     */
+    public synchronized void appendNew(Path file) throws IOException {
+        if (appendMark < 0) {
+            // Start after the entries loaded from the history file at startup
+            appendMark = 0;
+            for (var segment : loaded) {
+                appendMark += segment.size();
+            }
+        }
+        var size = size();
+        // Entries typed in this session are already in the history file
+        if (!isHistoryFile(file)) {
+            try (var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND)) {
+                var skip = appendMark;
+                for (var segment : segments) {
+                    var segmentSize = segment.size();
+                    if (skip < segmentSize) {
+                        segment.writeTo(channel, skip);
+                    }
+                    skip = Math.max(0, skip - segmentSize);
+                }
+            }
+        }
+        appendMark = size;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (appendChannel != null) {
+            if (syncPolicy == SyncPolicy.always) {
+                appendChannel.force(false);
+            }
+            appendChannel.close();
+            appendChannel = null;
+        }
+    }
+
+    private static void copyPermissions(Path from, Path to) throws IOException {
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (UnsupportedOperationException e) {
+            // Not a POSIX file system
+        }
+    }
+
+    private void openAppendChannel() throws IOException {
+        var missingNewline = endsWithoutNewline(historyFile);
+        appendChannel = FileChannel.open(historyFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (missingNewline) {
+            // Terminate the last line before appending after it
+            appendChannel.write(ByteBuffer.wrap(new byte[]{'\n'}));
+        }
+    }
+
+    private static boolean endsWithoutNewline(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return false;
+        }
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            var size = channel.size();
+            if (size == 0) {
+                return false;
+            }
+            var last = ByteBuffer.allocate(1);
+            channel.read(last, size - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private boolean isHistoryFile(Path file) throws IOException {
+        return historyFile != null && Files.exists(file) && Files.exists(historyFile)
+                && Files.isSameFile(file, historyFile);
+    }
+
+    private static ByteBuffer encode(String entry) {
+        return ByteBuffer.wrap((entry + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    private interface Segment {
+        int size();
+
+        String get(int index);
+
+        /**
+         * The last {@code n} entries, or all of them if there are fewer, oldest first.
+         */
+        List<String> tail(int n);
+
+        /**
+         * Writes the entries from {@code from} onwards, one per line.
+         */
+        void writeTo(WritableByteChannel channel, int from) throws IOException;
+    }
+
+    private static final class MemorySegment implements Segment {
+        final List<String> entries = new ArrayList<>();
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public String get(int index) {
+            return entries.get(index);
+        }
+
+        @Override
+        public List<String> tail(int n) {
+            return new ArrayList<>(entries.subList(Math.max(0, entries.size() - n), entries.size()));
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel channel, int from) throws IOException {
+            for (int i = from; i < entries.size(); i++) {
+                var buffer = encode(entries.get(i));
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lines of a memory-mapped part of a file, at most 1 GiB long.
+     * <p>
+     * Touching a page past the end of a file that was truncated after mapping it fails with an
+     * {@link InternalError}. Every access is made through {@link #guarded}, which then shrinks
+     * the mapping to what is left of the file and tries again.
+     */
+    private static final class MappedSegment implements Segment {
+        private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[]{'\n'});
+        private static final int COUNT_BLOCK_SIZE = 64 * 1024;
+        // 留出余量，偏移量加减时不会溢出 int
+        private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+        private final Path file;
+        // Where this segment starts in the file
+        private final long offset;
+        private MappedByteBuffer buffer;
+        // starts[i] is where line i begins; starts[count] is one past the newline ending the last line
+        private int[] starts;
+        private int count = -1;
+        // Number of lines, known before the offsets are indexed; -1 until counted
+        private int lines = -1;
+
+        private MappedSegment(Path file, long offset, MappedByteBuffer buffer) {
+            this.file = file;
+            this.offset = offset;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Maps {@code file} as one segment, or several for files over 1 GiB, each ending at
+         * a newline.
+         */
+        static List<MappedSegment> map(Path file) throws IOException {
+            var segments = new ArrayList<MappedSegment>();
+            try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                var size = channel.size();
+                var offset = 0L;
+                while (offset < size) {
+                    var length = (int) Math.min(size - offset, MAX_MAPPING_SIZE);
+                    var buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                    if (offset + length < size) {
+                        // 在最后一个换行处切开，一行不跨两段；没有换行的超长行只好切断
+                        var end = length;
+                        while (end > 0 && buffer.get(end - 1) != '\n') {
+                            end--;
+                        }
+                        if (end > 0) {
+                            length = end;
+                            buffer = buffer.slice(0, length);
+                        }
+                    }
+                    segments.add(new MappedSegment(file, offset, buffer));
+                    offset += length;
+                }
+            } catch (InternalError e) {
+                throw new IOException(file + ": truncated while being read", e);
+            }
+            return segments;
+        }
+
+        private interface Access<T> {
+            T run() throws IOException;
+        }
+
+        private <T> T guarded(Access<T> access) throws IOException {
+            while (true) {
+                try {
+                    return access.run();
+                } catch (InternalError e) {
+                    if (!truncate()) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Shrinks the mapping to the part of it still in the file, and forgets the line index.
+         * Returns false if the file is no shorter than the mapping, so the fault was not a
+         * truncation.
+         */
+        private boolean truncate() {
+            long size;
+            try {
+                size = Files.size(file);
+            } catch (IOException e) {
+                size = 0;
+            }
+            var limit = (int) Math.max(0, Math.min(buffer.limit(), size - offset));
+            if (limit >= buffer.limit()) {
+                return false;
+            }
+            buffer = buffer.slice(0, limit);
+            starts = null;
+            count = -1;
+            lines = -1;
+            return true;
+        }
+
+        private <T> T unchecked(Access<T> access) {
+            try {
+                return guarded(access);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Counts the lines without indexing them, so {@code history N} stays proportional to N
+         * apart from one pass over the bytes.
+         */
+        @Override
+        public int size() {
+            return unchecked(() -> {
+                if (count >= 0) {
+                    return count;
+                }
+                if (lines < 0) {
+                    lines = countLines();
+                }
+                return lines;
+            });
+        }
+
+        /**
+         * Returns an empty string for a line that has been truncated away since it was counted.
+         */
+        @Override
+        public String get(int index) {
+            return unchecked(() -> {
+                index();
+                return index < count ? decode(starts[index], starts[index + 1] - 1) : "";
+            });
+        }
+
+        @Override
+        public List<String> tail(int n) {
+            return unchecked(() -> readTail(n));
+        }
+
+        private List<String> readTail(int n) {
+            var result = new ArrayList<String>();
+            var end = buffer.limit();
+            if (end == 0 || n <= 0) {
+                return result;
+            }
+            if (buffer.get(end - 1) == '\n') {
+                end--;
+            }
+            // 从文件末尾往回找换行，只读需要的最后 n 行
+            while (result.size() < n) {
+                var start = end;
+                while (start > 0 && buffer.get(start - 1) != '\n') {
+                    start--;
+                }
+                result.add(decode(start, end));
+                if (start == 0) {
+                    break;
+                }
+                end = start - 1;
+            }
+            Collections.reverse(result);
+            return result;
+        }
+
+        /**
+         * The line from {@code from} up to the newline at {@code to}, without a trailing CR.
+         */
+        private String decode(int from, int to) {
+            if (to > from && buffer.get(to - 1) == '\r') {
+                to--;
+            }
+            var bytes = new byte[to - from];
+            buffer.get(from, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private int countLines() {
+            var limit = buffer.limit();
+            var block = new byte[COUNT_BLOCK_SIZE];
+            var n = 0;
+            for (int position = 0; position < limit; position += block.length) {
+                var length = Math.min(block.length, limit - position);
+                buffer.get(position, block, 0, length);
+                for (int i = 0; i < length; i++) {
+                    if (block[i] == '\n') {
+                        n++;
+                    }
+                }
+            }
+            if (limit > 0 && buffer.get(limit - 1) != '\n') {
+                n++;
+            }
+            return n;
+        }
+
+        @Override
+        public void writeTo(WritableByteChannel channel, int from) throws IOException {
+            try {
+                copyTo(channel, from);
+            } catch (InternalError e) {
+                // 已经写出去的部分没法收回，不能重试
+                truncate();
+                throw new IOException(file + ": truncated by another process while being copied", e);
+            }
+        }
+
+        private void copyTo(WritableByteChannel channel, int from) throws IOException {
+            guarded(() -> {
+                index();
+                return null;
+            });
+            if (from >= count) {
+                return;
+            }
+            var limit = buffer.limit();
+            var slice = buffer.slice(starts[from], limit - starts[from]);
+            while (slice.hasRemaining()) {
+                channel.write(slice);
+            }
+            if (buffer.get(limit - 1) != '\n') {
+                channel.write(NEWLINE.duplicate());
+            }
+        }
+
+        private void index() {
+            if (count >= 0) {
+                return;
+            }
+            var limit = buffer.limit();
+            var found = new int[1024];
+            var n = 0;
+            var lineStart = 0;
+            for (int i = 0; i < limit; i++) {
+                if (buffer.get(i) == '\n') {
+                    if (n + 2 > found.length) {
+                        found = Arrays.copyOf(found, found.length * 2);
+                    }
+                    found[n++] = lineStart;
+                    lineStart = i + 1;
+                }
+            }
+            if (n + 2 > found.length) {
+                found = Arrays.copyOf(found, n + 2);
+            }
+            if (lineStart < limit) {
+                // Last line without a trailing newline
+                found[n++] = lineStart;
+                found[n] = limit + 1;
+            } else {
+                found[n] = limit;
+            }
+            starts = found;
+            count = n;
+        }
+    }
+
+}
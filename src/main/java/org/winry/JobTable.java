@@ -0,0 +1,109 @@
+package org.winry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Background jobs started with {@code &}. Each job is a future that completes with the exit status
+ * of its pipeline; for external pipelines it is derived from {@link Process#onExit()}, so no
+ * thread waits on a running job.
+ */
+public class JobTable {
+
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+
+    public record Job(int id, String command, CompletableFuture<Integer> status) {
+
+        boolean isDone() {
+            return status.isDone();
+        }
+
+        String describe(String marker) {
+            String state;
+            if (!status.isDone()) {
+                state = "Running";
+            } else {
+                var exitStatus = status.getNow(1);
+                state = exitStatus == 0 ? "Done" : String.format("Exit %d", exitStatus);
+            }
+            return String.format("[%d]%s  %-24s%s &", id, marker, state, command);
+        }
+    }
+
+    /**
+     * Registers a job and returns it; its id is one more than the highest id in use.
+     */
+    public synchronized Job add(String command, CompletableFuture<Integer> status) {
+        var id = jobs.isEmpty() ? 1 : jobs.lastKey() + 1;
+        var job = new Job(id, command, status.exceptionally(e -> 1));
+        jobs.put(id, job);
+        return job;
+    }
+
+    /**
+     * Returns the job with {@code id}, or the most recent one if {@code id} is null.
+     */
+    public synchronized Job get(Integer id) {
+        if (id == null) {
+            return jobs.isEmpty() ? null : jobs.lastEntry().getValue();
+        }
+        return jobs.get(id);
+    }
+
+    public synchronized List<Job> all() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    public synchronized void remove(Job job) {
+        jobs.remove(job.id());
+    }
+
+    /**
+     * Writes every job, then forgets the ones that have finished, as {@code jobs} does.
+     */
+    public void list(OutputStream out) throws IOException {
+        var sink = OutputSink.of(out);
+        var current = get(null);
+        for (var job : all()) {
+            sink.println(job.describe(job == current ? "+" : " "));
+            if (job.isDone()) {
+                remove(job);
+            }
+        }
+        sink.flush();
+    }
+
+    /**
+     * Reports and forgets the jobs that finished since the last call; never blocks.
+     */
+    public void reportFinished(OutputStream out) throws IOException {
+        var sink = OutputSink.of(out);
+        var current = get(null);
+        for (var job : all()) {
+            if (job.isDone()) {
+                sink.println(job.describe(job == current ? "+" : " "));
+                remove(job);
+            }
+        }
+        sink.flush();
+    }
+
+    /**
+     * Waits for {@code job} to finish, forgets it and returns its exit status.
+     */
+    public int await(Job job) throws InterruptedException {
+        try {
+            return job.status().get();
+        } catch (ExecutionException e) {
+            return 1;
+        } finally {
+            remove(job);
+        }
+    }
+
+}
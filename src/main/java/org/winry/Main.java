@@ -1,25 +1,81 @@
 package org.winry;
 
+import org.jline.keymap.KeyMap;
+import org.jline.reader.LineReader;
 import org.jline.reader.LineReaderBuilder;
+import org.jline.reader.Reference;
 import org.jline.reader.impl.DefaultParser;
 import org.jline.terminal.TerminalBuilder;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Main {
     private static final String HOME = "~";
     private static final String PATH = "PATH";
     public static final String HIST_FILE = "HISTFILE";
-    private static Path PWD = Paths.get(System.getProperty("user.dir"));
-    private static List<String> historyList = new ArrayList<>();
-    private static int persistentHistoryIndex = 0;
+    public static final String COMPLETION_MODE = "COMPLETION_MODE";
+    private static final int PIPE_BUFFER_SIZE = 64 * 1024;
+    // 这些关键字后面紧跟命令，续行时不能插入 ;
+    private static final Set<String> OPENING_KEYWORDS = Set.of("if", "then", "elif", "else", "while", "until", "do");
+    // 后台作业不读终端，和 bash 一样从 /dev/null 读
+    private static final File NULL_DEVICE = new File("/dev/null");
+    private static final int SIGPIPE_STATUS = 128 + 13;
+    private static final int NOT_FOUND_STATUS = 127;
+    private static final String JVM_PATH = System.getenv(PATH);
+    private static final ScriptParser scriptParser = new ScriptParser();
+    // 作为管道一段的复合命令在自己的线程里求值，和 bash 的子 shell 一样有自己的状态
+    private static final ThreadLocal<Evaluation> evaluation = ThreadLocal.withInitial(Evaluation::new);
+    // 为空时是这个 JVM 的标准流；shell 为它启动的线程继承同一组流
+    private static final InheritableThreadLocal<Stdio> stdio = new InheritableThreadLocal<>();
+    private static final int SCRIPT_CACHE_SIZE = 256;
+    private static final Map<String, Script> scriptCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+            return size() > SCRIPT_CACHE_SIZE;
+        }
+    };
+    private static final JobTable jobTable = new JobTable();
+    private static final ExecutorService backgroundExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    public static final String HIST_FSYNC = "HISTFSYNC";
+    public static final String TIMING_LOG = "TIMING_LOG";
+    public static final String COREUTILS = "COREUTILS";
+    public static final String GLOB_LIMIT = "GLOB_LIMIT";
+    private static final int DEFAULT_GLOB_LIMIT = 100_000;
+    private static TimingLog timingLog;
+    private static volatile HistoryStore historyStore;
+    private static final Session SHELL = new Session(Paths.get(System.getProperty("user.dir")),
+            ShellEnvironment.inherit(), false);
+    // 为空时是交互式 shell 自己的；守护进程的每个请求在自己的线程里有自己的会话，它启动的线程继承
+    private static final InheritableThreadLocal<Session> sessions = new InheritableThreadLocal<>();
+    private static final CommandHashTable commandHashTable = new CommandHashTable(() -> getenv(PATH));
 
     public static void main(String[] args) throws Exception {
+        var timingLogFile = System.getenv(TIMING_LOG);
+        timingLog = TimingLog.open(timingLogFile != null ? Path.of(timingLogFile) : null);
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            ShellDaemon.serve(args.length > 1 ? Path.of(args[1]) : ShellDaemon.defaultSocket());
+            return;
+        }
+        if (args.length > 0) {
+            System.exit(runBatch(args));
+        }
+
         var terminal = TerminalBuilder.builder()
                 .system(true)
                 .build();
@@ -27,36 +83,538 @@ public class Main {
         var parser = new DefaultParser();
         parser.setEscapeChars(new char[0]);
 
-        var executables = findExecutables();
-        var completer = new MyCompleter(executables);
-        var lineReader = LineReaderBuilder.builder()
+        var builtins = Arrays.stream(BuiltInCommand.values()).map(Enum::name).toList();
+        var executableIndex = new ExecutableIndex(() -> getenv(PATH), builtins,
+                ExecutableIndex.defaultSnapshotFile());
+        executableIndex.start();
+        var fuzzy = "fuzzy".equals(System.getenv(COMPLETION_MODE));
+        var completer = new MyCompleter(executableIndex, Main::currentDirectory, fuzzy);
+        var lineReaderBuilder = LineReaderBuilder.builder()
                 .terminal(terminal)
                 .completer(completer)
-                .parser(parser)
-                .build();
+                .parser(parser);
+        if (fuzzy) {
+            lineReaderBuilder.completionMatcher(new FuzzyCompletionMatcher());
+        }
+        var lineReader = lineReaderBuilder.build();
 
         readHistory();
 
         String prompt = "$ ";
+        var historySearchIndex = new HistorySearchIndex(historyStore);
+        historySearchIndex.catchUpAsync();
+        lineReader.getWidgets().put(ReverseSearchWidget.NAME,
+                new ReverseSearchWidget(lineReader, historySearchIndex, prompt));
+        for (var keyMap : List.of(LineReader.EMACS, LineReader.VIINS)) {
+            lineReader.getKeyMaps().get(keyMap).bind(new Reference(ReverseSearchWidget.NAME), KeyMap.ctrl('R'));
+        }
         while (true) {
+            jobTable.reportFinished(System.out);
             String line = lineReader.readLine(prompt);
+            var entry = line;
+            // 没写完的 if/for/while 或结尾的 | && || 继续读下一行
+            while (line != null && isIncomplete(line)) {
+                var next = lineReader.readLine("> ");
+                line = line + "\n" + next;
+                entry = joinContinuation(entry, next);
+            }
 
             if (line != null && !line.isEmpty()) {
-                historyList.add(line);
-                var commandLine = parse(line);
-                run(commandLine);
+                historyStore.add(entry);
+                executeLine(line);
             }
         }
     }
 
-    private static void readHistory() throws IOException {
-        var historyFile = getHistoryFilePath();
-        if (historyFile != null && Files.exists(historyFile)) {
-            historyList.addAll(Files.readAllLines(historyFile));
-            persistentHistoryIndex = historyList.size();
+    /**
+     * Runs {@code -c 'commands'} or a script file without setting up a terminal, completion or
+     * history, and returns the exit status of the last pipeline.
+     */
+    private static int runBatch(String[] args) throws Exception {
+        if (historyStore == null) {
+            // 守护进程的各个请求共用一个内存里的历史
+            historyStore = HistoryStore.open(null, HistoryStore.SyncPolicy.never);
+        }
+
+        BufferedReader reader;
+        if (args[0].equals("-c")) {
+            if (args.length < 2) {
+                System.err.println("-c: option requires an argument");
+                return 2;
+            }
+            reader = new BufferedReader(new StringReader(args[1]));
+        } else {
+            var script = currentDirectory().resolve(args[0]);
+            if (!Files.isRegularFile(script)) {
+                System.err.println(args[0] + ": No such file or directory");
+                return 127;
+            }
+            reader = Files.newBufferedReader(script);
+        }
+
+        var status = 0;
+        var pending = new StringBuilder();
+        try (reader) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                pending.append(line).append('\n');
+                if (isIncomplete(pending.toString())) {
+                    continue;
+                }
+                status = executeLine(pending.toString());
+                pending.setLength(0);
+            }
+        }
+        if (!pending.isEmpty()) {
+            status = executeLine(pending.toString());
+        }
+        return status;
+    }
+
+    /**
+     * Runs one batch request for {@link ShellDaemon} with the client's working directory,
+     * environment and standard streams in place of this JVM's, and returns its exit status.
+     * {@code exit} ends the request instead of the daemon.
+     */
+    static int runSession(Path cwd, Map<String, String> environment, String[] args,
+                          InputStream in, PrintStream out, PrintStream err) {
+        // 客户端的状态和标准流只属于这个会话的线程和它启动的线程
+        sessions.set(new Session(cwd, ShellEnvironment.of(environment), true));
+        stdio.set(new Stdio(in, out, err));
+        try {
+            return runBatch(args);
+        } catch (SessionExit e) {
+            return e.status;
+        } catch (BrokenPipe e) {
+            return SIGPIPE_STATUS;
+        } catch (Exception e) {
+            err.println(e.getMessage());
+            return 1;
+        } finally {
+            sessions.remove();
+            stdio.remove();
+        }
+    }
+
+    private static class SessionExit extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        final int status;
+
+        SessionExit(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Unwinds a compound command, or a daemon session, whose standard output has been closed by
+     * the reader, as SIGPIPE ends a bash subshell.
+     */
+    private static class BrokenPipe extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        BrokenPipe() {
+            super(null, null, false, false);
+        }
+    }
+
+    static String getenv(String name) {
+        return session().environment.get(name);
+    }
+
+    /**
+     * The directory {@code ~} expands to: {@code HOME}, or the user's home directory when it is
+     * unset.
+     */
+    static String homeDirectory() {
+        var homeDir = getenv("HOME");
+        // 和 bash 一样，HOME 被 unset 后 ~ 取用户的主目录
+        return homeDir != null ? homeDir : System.getProperty("user.home");
+    }
+
+    /**
+     * A process builder for an external command, started in the shell's working directory and
+     * environment.
+     */
+    static ProcessBuilder processBuilder(String... command) {
+        // JDK 在 JVM 启动时的 PATH 里找程序；PATH 变过就直接给出 shell 找到的路径，
+        // 没变时保留原来的名字，程序看到的 argv[0] 和 bash 一样
+        if (command[0].indexOf('/') < 0 && !Objects.equals(getenv(PATH), JVM_PATH)) {
+            var executable = findExecutable(command[0]);
+            if (executable != null) {
+                command = command.clone();
+                command[0] = executable;
+            }
+        }
+        var processBuilder = new ProcessBuilder(command).directory(currentDirectory().toFile());
+        session().environment.applyTo(processBuilder);
+        return processBuilder;
+    }
+
+    /**
+     * Parses and runs one command line, returning its exit status. Pipelines prefixed with
+     * {@code time} report their times on stderr, and every pipeline is logged when
+     * {@code TIMING_LOG} is set.
+     */
+    static int execute(String line) throws Exception {
+        Script script;
+        try {
+            script = compile(line);
+        } catch (IllegalArgumentException e) {
+            stderr().println(e.getMessage());
+            return recordStatus(2);
+        }
+        return evaluate(script);
+    }
+
+    /**
+     * Runs one command line as {@link #execute} does, but reports a failure such as a command that
+     * could not be started on stderr and goes on with the next line instead of ending the shell.
+     */
+    private static int executeLine(String line) {
+        try {
+            return execute(line);
+        } catch (SessionExit | BrokenPipe e) {
+            throw e;
+        } catch (Exception e) {
+            stderr().println(e.getMessage() != null ? e.getMessage() : e.toString());
+            return recordStatus(1);
         }
     }
 
+    /**
+     * The parsed form of {@code source}, shared by every run of the same text.
+     */
+    private static Script compile(String source) {
+        synchronized (scriptCache) {
+            var script = scriptCache.get(source);
+            if (script == null) {
+                script = parse(source);
+                scriptCache.put(source, script);
+            }
+            return script;
+        }
+    }
+
+    static Script parse(String source) {
+        synchronized (scriptParser) {
+            return scriptParser.parse(source);
+        }
+    }
+
+    private static boolean isIncomplete(String source) {
+        try {
+            compile(source);
+            return false;
+        } catch (ScriptParser.Incomplete e) {
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Joins a continuation line onto a history entry so the entry stays on one line, the way bash's
+     * {@code cmdhist} does: with {@code ; }, or with a space after a keyword or operator that
+     * cannot be followed by {@code ;}.
+     */
+    static String joinContinuation(String entry, String next) {
+        var previous = entry.stripTrailing();
+        if (next.isBlank()) {
+            return entry;
+        }
+        if (previous.isEmpty() || previous.endsWith("|") || previous.endsWith("&") || previous.endsWith(";")) {
+            return previous + " " + next.strip();
+        }
+        var start = previous.length();
+        while (start > 0 && !Character.isWhitespace(previous.charAt(start - 1))) {
+            start--;
+        }
+        var separator = OPENING_KEYWORDS.contains(previous.substring(start)) ? " " : "; ";
+        return previous + separator + next.strip();
+    }
+
+    private static int evaluate(Script script) throws Exception {
+        return switch (script) {
+            case Script.Pipeline pipeline -> runPipeline(pipeline);
+            case Script.Sequence sequence -> {
+                var status = lastStatus();
+                for (var item : sequence.scripts()) {
+                    status = evaluate(item);
+                }
+                yield status;
+            }
+            case Script.AndOr andOr -> {
+                var status = evaluate(andOr.left());
+                // && 在成功时继续，|| 在失败时继续
+                yield (status == 0) == andOr.and() ? evaluate(andOr.right()) : status;
+            }
+            case Script.Not not -> recordStatus(evaluate(not.script()) == 0 ? 1 : 0);
+            case Script.If branches -> {
+                for (int i = 0; i < branches.conditions().size(); i++) {
+                    if (evaluate(branches.conditions().get(i)) == 0) {
+                        yield evaluate(branches.branches().get(i));
+                    }
+                }
+                yield branches.otherwise() != null ? evaluate(branches.otherwise()) : recordStatus(0);
+            }
+            case Script.Loop loop -> {
+                var status = 0;
+                var state = evaluation.get();
+                state.loopDepth++;
+                try {
+                    while ((evaluate(loop.condition()) == 0) != loop.until()) {
+                        try {
+                            status = evaluate(loop.body());
+                        } catch (LoopControl control) {
+                            // break 和 continue 本身总是成功的
+                            status = 0;
+                            if (control.exits()) {
+                                break;
+                            }
+                        }
+                    }
+                } finally {
+                    state.loopDepth--;
+                }
+                yield recordStatus(status);
+            }
+            case Script.For loop -> {
+                var values = new ArrayList<String>();
+                for (var word : loop.words()) {
+                    expandWord(word, values);
+                }
+                var status = 0;
+                var state = evaluation.get();
+                state.loopDepth++;
+                try {
+                    for (var value : values) {
+                        session().environment.set(loop.name(), value);
+                        try {
+                            status = evaluate(loop.body());
+                        } catch (LoopControl control) {
+                            // break 和 continue 本身总是成功的
+                            status = 0;
+                            if (control.exits()) {
+                                break;
+                            }
+                        }
+                    }
+                } finally {
+                    state.loopDepth--;
+                }
+                yield recordStatus(status);
+            }
+            case Script.Break control -> {
+                var loopDepth = evaluation.get().loopDepth;
+                if (loopDepth == 0) {
+                    var name = control.next() ? "continue" : "break";
+                    stderr().println(name + ": only meaningful in a `for', `while', or `until' loop");
+                    yield recordStatus(0);
+                }
+                throw new LoopControl(control.next(), Math.min(control.levels(), loopDepth));
+            }
+        };
+    }
+
+    /**
+     * Unwinds to the loop that a {@code break} or {@code continue} applies to.
+     */
+    private static class LoopControl extends RuntimeException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final boolean next;
+        private int levels;
+
+        LoopControl(boolean next, int levels) {
+            super(null, null, false, false);
+            this.next = next;
+            this.levels = levels;
+        }
+
+        /**
+         * Called by each loop it passes: returns true to leave that loop, false to go on with its
+         * next iteration, and rethrows while outer loops are still to be left.
+         */
+        boolean exits() {
+            if (--levels > 0) {
+                throw this;
+            }
+            return !next;
+        }
+    }
+
+    /**
+     * What one thread needs to evaluate scripts: the main thread's, or that of a compound command
+     * running as a pipeline stage.
+     */
+    private static class Evaluation {
+        // 解析时不展开变量；运行时用 expander 重新展开引用了变量的单词
+        final CommandLexer expander = new CommandLexer(Main::lookupVariable);
+        int loopDepth;
+    }
+
+    /**
+     * The state that command lines share: the working directory, the environment and the statuses
+     * of the last pipeline. The interactive shell has one; each daemon request gets its own.
+     */
+    private static class Session {
+        volatile Path pwd;
+        // export/unset 修改的环境；守护进程中每个请求带来自己的环境
+        final ShellEnvironment environment;
+        // 上一个管道每个阶段的退出码，最后一个就是 $?
+        volatile int[] pipeStatus = {0};
+        final boolean daemon;
+
+        Session(Path pwd, ShellEnvironment environment, boolean daemon) {
+            this.pwd = pwd;
+            this.environment = environment;
+            this.daemon = daemon;
+        }
+    }
+
+    private static Session session() {
+        var session = sessions.get();
+        return session != null ? session : SHELL;
+    }
+
+    /**
+     * The shell's standard streams when they are not this JVM's.
+     */
+    private record Stdio(InputStream in, PrintStream out, PrintStream err) {
+    }
+
+    private static InputStream stdin() {
+        var streams = stdio.get();
+        return streams != null ? streams.in : System.in;
+    }
+
+    private static PrintStream stdout() {
+        var streams = stdio.get();
+        return streams != null ? streams.out : System.out;
+    }
+
+    private static PrintStream stderr() {
+        var streams = stdio.get();
+        return streams != null ? streams.err : System.err;
+    }
+
+    /**
+     * Whether child processes can inherit this JVM's standard streams as the shell's.
+     */
+    private static boolean inheritsStdio() {
+        return stdio.get() == null;
+    }
+
+    /**
+     * Runs a compound command as a pipeline stage, with the stage's streams as its standard ones.
+     */
+    private static RunBuiltin subshell(Script script) {
+        return (args, in, out, err) -> {
+            var stageOut = new PrintStream(out);
+            var stageErr = new PrintStream(err);
+            var outer = stdio.get();
+            stdio.set(new Stdio(in, stageOut, stageErr));
+            try {
+                return evaluate(script);
+            } catch (BrokenPipe e) {
+                return SIGPIPE_STATUS;
+            } finally {
+                stdio.set(outer);
+                stageOut.flush();
+                stageErr.flush();
+            }
+        };
+    }
+
+    private static int runPipeline(Script.Pipeline pipeline) throws Exception {
+        var timer = new CommandTimer();
+        if (timingLog != null) {
+            timer.startCpu();
+        }
+        CommandLine commandLine;
+        try {
+            commandLine = resolve(pipeline);
+        } catch (IllegalArgumentException e) {
+            stderr().println(e.getMessage());
+            return recordStatus(2);
+        }
+        timer.lap(CommandTimer.Phase.PARSE);
+        if (commandLine.timed && timingLog == null) {
+            timer.startCpu();
+        }
+
+        var status = recordStatus(run(commandLine, timer));
+        var streams = stdio.get();
+        // PrintStream 不抛出写入错误，每个管道结束后检查一次，否则写往已关闭管道的循环永远不停
+        if (streams != null && streams.out.checkError()) {
+            throw new BrokenPipe();
+        }
+        timer.stop();
+        if (commandLine.timed) {
+            timer.report(stderr());
+        }
+        if (timingLog != null) {
+            timingLog.append(commandLine.text, status, timer);
+        }
+        return status;
+    }
+
+    private static int recordStatus(int... statuses) {
+        session().pipeStatus = statuses;
+        return statuses[statuses.length - 1];
+    }
+
+    private static int lastStatus() {
+        var statuses = session().pipeStatus;
+        return statuses[statuses.length - 1];
+    }
+
+    /**
+     * Resolves {@code $?}, {@code PIPESTATUS} ({@code [n]}, {@code [@]} or {@code [*]}) and
+     * environment variables for the lexer.
+     */
+    private static String lookupVariable(String name) {
+        if (name.equals("?")) {
+            return Integer.toString(lastStatus());
+        }
+        if (name.startsWith("PIPESTATUS")) {
+            var statuses = session().pipeStatus;
+            var subscript = name.substring("PIPESTATUS".length());
+            if (subscript.isEmpty() || subscript.equals("[0]")) {
+                return Integer.toString(statuses[0]);
+            }
+            if (subscript.equals("[@]") || subscript.equals("[*]")) {
+                var joined = new StringBuilder();
+                for (var status : statuses) {
+                    if (!joined.isEmpty()) {
+                        joined.append(' ');
+                    }
+                    joined.append(status);
+                }
+                return joined.toString();
+            }
+            if (subscript.startsWith("[") && subscript.endsWith("]")) {
+                var index = subscript.substring(1, subscript.length() - 1);
+                if (!isInteger(index)) {
+                    return null;
+                }
+                var n = Integer.parseInt(index);
+                return n >= 0 && n < statuses.length ? Integer.toString(statuses[n]) : null;
+            }
+        }
+        return getenv(name);
+    }
+
+    private static void readHistory() throws IOException {
+        var syncPolicy = HistoryStore.SyncPolicy.of(System.getenv(HIST_FSYNC));
+        historyStore = HistoryStore.open(getHistoryFilePath(), syncPolicy);
+    }
+
     private static Path getHistoryFilePath() {
         var pathEnv = System.getenv(HIST_FILE);
         if (pathEnv != null) {
@@ -68,113 +626,278 @@ public class Main {
     enum BuiltInCommand implements RunBuiltin {
         exit {
             @Override
-            public void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
-                int status = 0;
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                int status = lastStatus();
                 if (args.length != 0) {
                     status = Integer.parseInt(args[0]);
                 }
-                if (status == 0) {
-                    var historyFile = getHistoryFilePath();
-                    if (historyFile != null) {
-                        var toAppend = historyList.subList(persistentHistoryIndex, historyList.size());
-                        Files.write(historyFile, toAppend, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                    }
+                // 每条历史在输入时已经追加到 HISTFILE，这里只需要关闭
+                historyStore.close();
+                if (session().daemon) {
+                    throw new SessionExit(status);
                 }
                 System.exit(status);
+                return status;
             }
         }, echo {
             @Override
-            public void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
                 var message = String.join(" ", args);
                 write(out, message);
+                return 0;
             }
         }, type {
             @Override
-            public void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
                 if (args.length == 0) {
                     write(out, "type command requires an argument");
-                    return;
+                    return 2;
                 }
                 var arg0 = args[0];
-                var toType = BuiltInCommand.of(arg0);
-                if (toType == null) {
-                    var executable = findExecutable(arg0);
-                    if (executable != null) {
-                        var message = String.format("%s is %s", arg0, executable);
-                        write(out, message);
-                    } else {
-                        var error = String.format("%s: not found", arg0);
-                        write(out, error);
-                    }
+                if (BuiltInCommand.of(arg0) != null) {
+                    write(out, String.format("%s is a shell builtin", arg0));
+                    return 0;
+                }
+                // 进程内的 coreutils 只替代部分用法，有外部程序时报告外部程序
+                var executable = findExecutable(arg0);
+                if (executable != null) {
+                    write(out, String.format("%s is %s", arg0, executable));
+                } else if (findBuiltin(arg0, new String[0]) != null) {
+                    write(out, String.format("%s is a shell builtin", arg0));
                 } else {
-                    var message = String.format("%s is a shell builtin", toType);
-                    write(out, message);
+                    write(out, String.format("%s: not found", arg0));
+                    return 1;
                 }
+                return 0;
             }
         }, pwd {
             @Override
-            public void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
-                var message = PWD.toAbsolutePath().toString();
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                var message = currentDirectory().toAbsolutePath().toString();
                 write(out, message);
+                return 0;
             }
         }, cd {
             @Override
-            public void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
                 if (args.length == 0) {
-                    return;
+                    return 0;
                 }
                 var targetPath = args[0];
                 var separator = FileSystems.getDefault().getSeparator();
                 if (targetPath.equals(HOME) || targetPath.startsWith(HOME + separator)) {
-                    var homeDir = System.getenv("HOME");
-                    targetPath = targetPath.replaceFirst(HOME, homeDir);
+                    targetPath = homeDirectory() + targetPath.substring(HOME.length());
                 }
 
-                var newPath = PWD.resolve(targetPath).normalize();
+                var newPath = currentDirectory().resolve(targetPath).normalize();
                 if (!Files.isDirectory(newPath)) {
                     var error = String.format("cd: %s: No such file or directory", newPath);
                     write(out, error);
-                } else {
-                    PWD = newPath;
+                    return 1;
                 }
+                session().pwd = newPath;
+                return 0;
             }
         }, history {;
 
             @Override
-            public void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
-                var limit = historyList.size();
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                var size = historyStore.size();
+                var limit = size;
                 if (args.length > 0) {
                     var arg0 = args[0];
                     if (arg0.equals("-r")) {
                         var arg1 = args[1];
                         var historyFile = Path.of(arg1);
-                        historyList.addAll(Files.readAllLines(historyFile));
-                        return;
+                        historyStore.read(historyFile);
+                        return 0;
                     }
                     if (arg0.equals("-w")) {
                         var arg1 = args[1];
                         var historyFile = Path.of(arg1);
-                        Files.write(historyFile, historyList);
-                        return;
+                        historyStore.write(historyFile);
+                        return 0;
                     }
                     if (arg0.equals("-a")) {
                         var arg1 = args[1];
                         var historyFile = Path.of(arg1);
-                        var toAppend = historyList.subList(persistentHistoryIndex, historyList.size());
-                        Files.write(historyFile, toAppend, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
-                        persistentHistoryIndex = historyList.size();
-                        return;
+                        historyStore.appendNew(historyFile);
+                        return 0;
                     }
                     if (isInteger(arg0)) {
                         limit = Integer.parseInt(args[0]);
                     }
                 }
-                limit = Math.min(limit, historyList.size());
-                var start = Math.max(0, historyList.size() - limit);
-                for (int i = start; i < historyList.size(); i++) {
-                    var entry = String.format("%d  %s", i + 1, historyList.get(i));
-                    write(out, entry);
+                var entries = historyStore.tail(Math.min(limit, size));
+                var first = size - entries.size();
+                var sink = OutputSink.of(out);
+                for (int i = 0; i < entries.size(); i++) {
+                    sink.print(first + i + 1).print("  ").println(entries.get(i));
                 }
+                sink.flush();
+                return 0;
+            }
+        }, hash {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                if (args.length == 0) {
+                    var snapshot = commandHashTable.snapshot();
+                    if (snapshot.isEmpty()) {
+                        write(out, "hash: hash table empty");
+                        return 0;
+                    }
+                    write(out, "hits\tcommand");
+                    for (var entry : snapshot.entrySet()) {
+                        write(out, String.format("%4d\t%s", entry.getValue(), entry.getKey()));
+                    }
+                    return 0;
+                }
+                var status = 0;
+                for (var arg : args) {
+                    if (arg.equals("-r")) {
+                        commandHashTable.clear();
+                    } else if (BuiltInCommand.of(arg) == null && !commandHashTable.remember(arg)) {
+                        write(err, String.format("hash: %s: not found", arg));
+                        status = 1;
+                    }
+                }
+                return status;
+            }
+        }, export {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                if (args.length == 0) {
+                    for (var declaration : session().environment.declarations()) {
+                        write(out, declaration);
+                    }
+                    return 0;
+                }
+                var status = 0;
+                for (var arg : args) {
+                    var equals = arg.indexOf('=');
+                    var name = equals < 0 ? arg : arg.substring(0, equals);
+                    if (!ShellEnvironment.isName(name)) {
+                        write(err, String.format("export: `%s': not a valid identifier", arg));
+                        status = 1;
+                    } else if (equals >= 0) {
+                        session().environment.export(name, arg.substring(equals + 1));
+                    } else {
+                        session().environment.export(name);
+                    }
+                }
+                return status;
+            }
+        }, unset {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                var status = 0;
+                for (var name : args) {
+                    if (!ShellEnvironment.isName(name)) {
+                        write(err, String.format("unset: `%s': not a valid identifier", name));
+                        status = 1;
+                    } else {
+                        session().environment.unset(name);
+                    }
+                }
+                return status;
+            }
+        }, read {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                var raw = args.length > 0 && args[0].equals("-r");
+                var names = Arrays.asList(args).subList(raw ? 1 : 0, args.length);
+                for (var name : names) {
+                    if (!ShellEnvironment.isName(name)) {
+                        write(err, String.format("read: `%s': not a valid identifier", name));
+                        return 1;
+                    }
+                }
+                // 一次读一个字节，管道里这一行之后的内容留给后面的命令
+                var line = new ByteArrayOutputStream();
+                var ended = false;
+                int b;
+                while ((b = in.read()) >= 0) {
+                    if (b == '\\' && !raw) {
+                        var next = in.read();
+                        if (next >= 0 && next != '\n') {
+                            line.write(next);
+                        }
+                        continue;
+                    }
+                    if (b == '\n') {
+                        ended = true;
+                        break;
+                    }
+                    line.write(b);
+                }
+                var fields = line.toString().strip();
+                if (names.isEmpty()) {
+                    session().environment.set("REPLY", line.toString());
+                    return ended || line.size() > 0 ? 0 : 1;
+                }
+                for (int i = 0; i < names.size(); i++) {
+                    var value = fields;
+                    if (i < names.size() - 1) {
+                        var space = indexOfWhitespace(fields);
+                        value = space < 0 ? fields : fields.substring(0, space);
+                        fields = space < 0 ? "" : fields.substring(space).stripLeading();
+                    }
+                    session().environment.set(names.get(i), value);
+                }
+                return ended || line.size() > 0 ? 0 : 1;
+            }
+
+            private static int indexOfWhitespace(String text) {
+                for (int i = 0; i < text.length(); i++) {
+                    if (Character.isWhitespace(text.charAt(i))) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+        }, jobs {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                jobTable.list(out);
+                return 0;
+            }
+        }, wait {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                if (args.length == 0) {
+                    for (var job : jobTable.all()) {
+                        jobTable.await(job);
+                    }
+                    return 0;
+                }
+                var status = 0;
+                for (var arg : args) {
+                    var job = findJob(arg);
+                    if (job == null) {
+                        write(err, String.format("wait: %s: no such job", arg));
+                        status = 127;
+                    } else {
+                        status = jobTable.await(job);
+                    }
+                }
+                return status;
+            }
+        }, fg {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                var job = args.length == 0 ? jobTable.get(null) : findJob(args[0]);
+                if (job == null) {
+                    write(err, String.format("fg: %s: no such job", args.length == 0 ? "current" : args[0]));
+                    return 1;
+                }
+                write(out, job.command());
+                out.flush();
+                return jobTable.await(job);
+            }
+        }, parallel {
+            @Override
+            public int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+                return Parallel.run(args, in, out, err);
             }
         };
 
@@ -188,6 +911,14 @@ public class Main {
 
     }
 
+    /**
+     * Looks up a job by {@code %n} or {@code n}.
+     */
+    private static JobTable.Job findJob(String spec) {
+        var id = spec.startsWith("%") ? spec.substring(1) : spec;
+        return isInteger(id) ? jobTable.get(Integer.parseInt(id)) : null;
+    }
+
     private static boolean isInteger(String str) {
         try {
             Integer.parseInt(str);
@@ -198,11 +929,23 @@ public class Main {
     }
 
     private static void write(OutputStream out, String message) throws IOException {
+        if (out instanceof OutputSink sink) {
+            sink.println(message);
+            return;
+        }
         out.write((message + "\n").getBytes());
         out.flush();
     }
 
-    record Command(String command, String[] args) {
+    /**
+     * One pipeline stage: a command with its arguments or, when {@code compound} is set, a compound
+     * command, named by its first keyword.
+     */
+    record Command(String command, String[] args, Script compound) {
+
+        Command(String command, String[] args) {
+            this(command, args, null);
+        }
 
         public String[] getCommandWithArgs() {
             String[] commandWithArgs = new String[args.length + 1];
@@ -213,359 +956,641 @@ public class Main {
 
     }
 
-    private static CommandLine parse(String command) {
-        if (command == null || command.isEmpty()) {
-            throw new IllegalArgumentException("command cannot be null or empty");
+    /**
+     * Expands the words of {@code pipeline} into the command line to run. A pipeline without
+     * variables or wildcards expands the same way every time, so it is expanded once and reused.
+     */
+    private static CommandLine resolve(Script.Pipeline pipeline) {
+        if (pipeline.resolved != null) {
+            return pipeline.resolved;
         }
-
         var commandLine = new CommandLine();
-
-        var tokens = splitCommand(command);
-        var split = new ArrayList<List<String>>();
-        var toSplit = List.of("|", ">", ">>", "1>", "1>>", "2>", "2>>");
-        var temp = new ArrayList<String>();
-        var splitToken = "";
-        for (var token : tokens) {
-            if (toSplit.contains(token)) {
-                if (!temp.isEmpty()) {
-                    split.add(new ArrayList<>(temp));
-                    temp.clear();
-                    if (!token.equals("|")) {
-                        splitToken = token;
-                    } else {
-                        splitToken = "";
-                    }
-                }
-            } else {
-                if (!splitToken.isEmpty()) {
-                    switch (splitToken) {
-                        case ">", "1>" -> {
-                            commandLine.outRedirect = token;
-                            commandLine.outAppend = false;
-                        }
-                        case ">>", "1>>" -> {
-                            commandLine.outRedirect = token;
-                            commandLine.outAppend = true;
-                        }
-                        case "2>" -> {
-                            commandLine.errRedirect = token;
-                            commandLine.errAppend = false;
-                        }
-                        case "2>>" -> {
-                            commandLine.errRedirect = token;
-                            commandLine.errAppend = true;
-                        }
-                        default ->
-                                throw new IllegalArgumentException("Unknown redirection operator: " + splitToken);
-                    }
-                } else {
-                    temp.add(token);
-                }
+        var commands = new ArrayList<Command>();
+        var words = new ArrayList<String>();
+        for (int i = 0; i < pipeline.commands.size(); i++) {
+            var compound = pipeline.compounds.get(i);
+            if (compound != null) {
+                commands.add(new Command(compoundName(compound), new String[0], compound));
+                continue;
             }
+            for (var word : pipeline.commands.get(i)) {
+                expandWord(word, words);
+            }
+            addCommand(commands, words);
         }
-        split.add(temp);
-        commandLine.commands = split.stream()
-                .filter(s -> !s.isEmpty())
-                .map(Main::getCommand)
-                .toList();
-        return commandLine;
-    }
-
-    private static Command getCommand(List<String> tokens) {
-        if (tokens.isEmpty()) {
-            throw new IllegalArgumentException("command cannot be empty");
-        }
-
-        // no args
-        if (tokens.size() == 1) {
-            return new Command(tokens.getFirst(), new String[0]);
+        commandLine.commands = commands;
+        commandLine.inRedirect = expandTarget(pipeline.inRedirect);
+        commandLine.hereString = expandTarget(pipeline.hereString);
+        commandLine.outRedirect = expandTarget(pipeline.outRedirect);
+        commandLine.errRedirect = expandTarget(pipeline.errRedirect);
+        commandLine.outAppend = pipeline.outAppend;
+        commandLine.errAppend = pipeline.errAppend;
+        commandLine.background = pipeline.background;
+        commandLine.timed = pipeline.timed;
+        commandLine.text = pipeline.text;
+        if (pipeline.isStatic()) {
+            pipeline.resolved = commandLine;
         }
-
-        String[] args = tokens.subList(1, tokens.size()).toArray(new String[0]);
-        return new Command(tokens.getFirst(), args);
+        return commandLine;
     }
 
-    private enum QuteMode {
-        singleQuote, doubleQuote
+    private static String compoundName(Script compound) {
+        return switch (compound) {
+            case Script.If ignored -> "if";
+            case Script.For ignored -> "for";
+            case Script.Loop loop -> loop.until() ? "until" : "while";
+            default -> compound.getClass().getSimpleName();
+        };
     }
 
-    private static List<String> splitCommand(String command) {
-        var result = new ArrayList<String>();
-        var temp = new StringBuilder();
-        QuteMode quteMode = null;
-        var escape = false;
-        var toEscape = Set.of('\"', '\\', '$', '`');
-
-        for (char ch : command.toCharArray()) {
-            if (quteMode == QuteMode.singleQuote) {
-                if (ch == '\'') {
-                    quteMode = null;
-                } else {
-                    temp.append(ch);
-                }
-            } else if (quteMode == QuteMode.doubleQuote) {
-                if (escape) {
-                    if (!toEscape.contains(ch)) {
-                        temp.append('\\');
-                    }
-                    temp.append(ch);
-                    escape = false;
-                } else {
-                    if (ch == '\"') {
-                        quteMode = null;
-                    } else if (ch == '\\') {
-                        escape = true;
-                    } else {
-                        temp.append(ch);
-                    }
-                }
-            } else {
-                if (escape) {
-                    temp.append(ch);
-                    escape = false;
-                } else {
-                    if (ch == '\'') {
-                        quteMode = QuteMode.singleQuote;
-                    } else if (ch == '\"') {
-                        quteMode = QuteMode.doubleQuote;
-                    } else if (ch == ' ') {
-                        addTemp(result, temp);
-                    } else if (ch == '\\') {
-                        escape = true;
-                    } else {
-                        temp.append(ch);
-                    }
-                }
+    /**
+     * Adds what {@code word} expands to: its variables, then the paths its pattern matches.
+     */
+    private static void expandWord(Script.Word word, List<String> words) {
+        var value = word.value();
+        var pattern = word.pattern();
+        if (value == null) {
+            var expander = evaluation.get().expander;
+            if (expander.lex(word.source()) == 0) {
+                // 没有引号、展开为空的单词被丢弃
+                return;
             }
+            value = expander.word(0);
+            pattern = expander.pattern(0);
         }
+        if (pattern != null) {
+            expandGlob(value, pattern, words);
+        } else {
+            words.add(value);
+        }
+    }
 
-        if (quteMode != null) {
-            throw new IllegalArgumentException("Unclosed quote.");
+    private static String expandTarget(Script.Word word) {
+        if (word == null) {
+            return null;
         }
+        if (word.value() != null) {
+            return word.value();
+        }
+        var expander = evaluation.get().expander;
+        if (expander.lex(word.source()) == 0) {
+            throw new IllegalArgumentException(word.source() + ": ambiguous redirect");
+        }
+        return expander.word(0);
+    }
 
-        addTemp(result, temp);
+    /**
+     * Adds the paths matching {@code pattern}, or the word itself when nothing matches.
+     */
+    private static void expandGlob(String word, String pattern, List<String> words) {
+        var matches = Glob.compile(pattern).expand(currentDirectory(), globLimit());
+        if (matches.isEmpty()) {
+            words.add(word);
+        } else {
+            words.addAll(matches);
+        }
+    }
 
-        return result;
+    private static int globLimit() {
+        var limit = getenv(GLOB_LIMIT);
+        return limit != null && isInteger(limit) ? Integer.parseInt(limit) : DEFAULT_GLOB_LIMIT;
     }
 
-    private static void addTemp(List<String> result, StringBuilder temp) {
-        if (!temp.isEmpty()) {
-            result.add(temp.toString());
-            temp.setLength(0);
+    private static void addCommand(List<Command> commands, List<String> words) {
+        if (words.isEmpty()) {
+            return;
         }
+        var args = words.subList(1, words.size()).toArray(new String[0]);
+        commands.add(new Command(words.getFirst(), args));
+        words.clear();
     }
 
-    private static OutputStream getFinalOutputStream(CommandLine commandLine) throws FileNotFoundException {
-        if (commandLine.outRedirect != null) {
-            var file = Path.of(commandLine.outRedirect).toFile();
-            return new FileOutputStream(file, commandLine.outAppend);
-        } else {
-            return System.out;
-        }
+    /**
+     * Opens a redirection target for output written by the shell itself, or returns
+     * {@code standard} when there is no redirection.
+     */
+    private static OutputStream openRedirect(String target, boolean append, OutputStream standard) throws IOException {
+        return target != null ? OutputSink.open(currentDirectory().resolve(target), append) : standard;
     }
 
-    private static OutputStream getFinalErrorStream(CommandLine commandLine) throws FileNotFoundException {
-        if (commandLine.errRedirect != null) {
-            var file = Path.of(commandLine.errRedirect).toFile();
-            return new FileOutputStream(file, commandLine.errAppend);
-        } else {
-            return System.err;
+    /**
+     * Where a child process writes a redirection target: the child opens the file itself, so its
+     * output never passes through the JVM.
+     */
+    private static ProcessBuilder.Redirect processRedirect(String target, boolean append) {
+        if (target == null) {
+            return ProcessBuilder.Redirect.INHERIT;
         }
+        var file = currentDirectory().resolve(target).toFile();
+        return append ? ProcessBuilder.Redirect.appendTo(file) : ProcessBuilder.Redirect.to(file);
     }
 
-    private static void run(CommandLine commandLine) throws Exception {
+    /**
+     * Runs the command line and returns the exit status of every pipeline stage.
+     */
+    private static int[] run(CommandLine commandLine, CommandTimer timer) throws Exception {
         List<Command> commands = commandLine.commands;
+        if (commands.isEmpty()) {
+            return new int[]{0};
+        }
         boolean hasBuiltin = false;
         List<ProcessBuilder> processBuilders = new ArrayList<>();
 
         for (var command : commands) {
-            if (BuiltInCommand.of(command.command) != null) {
+            if (findBuiltin(command) != null) {
                 hasBuiltin = true;
                 processBuilders.add(null); // 用 null 作为内置命令的占位符
             } else {
                 var executable = findExecutable(command.command);
                 if (executable != null) {
-                    processBuilders.add(new ProcessBuilder(command.getCommandWithArgs()));
+                    processBuilders.add(processBuilder(command.getCommandWithArgs()));
                 } else {
-                    System.out.println(command.command + ": command not found");
-                    return; // 任何一个命令找不到，整个管道就失败
+                    stdout().println(command.command + ": command not found");
+                    return new int[]{NOT_FOUND_STATUS}; // 任何一个命令找不到，整个管道就失败
                 }
             }
         }
 
+        if (commandLine.inRedirect != null) {
+            var input = currentDirectory().resolve(commandLine.inRedirect);
+            String problem = null;
+            if (Files.isDirectory(input)) {
+                problem = "Is a directory";
+            } else if (!Files.exists(input)) {
+                problem = "No such file or directory";
+            } else if (!Files.isReadable(input)) {
+                problem = "Permission denied";
+            }
+            if (problem != null) {
+                stderr().println(commandLine.inRedirect + ": " + problem);
+                return new int[]{1};
+            }
+        }
+        timer.lap(CommandTimer.Phase.LOOKUP);
+
+        if (commandLine.background && session().daemon) {
+            // 请求结束时会话的流就关闭了，后台作业的输出无处可去
+            stderr().println(commandLine.text + ": background jobs are not supported by the shell daemon");
+            return new int[]{1};
+        }
+        if (commandLine.background) {
+            var status = startJob(commandLine, processBuilders, hasBuiltin);
+            timer.lap(CommandTimer.Phase.SPAWN);
+            return new int[]{status};
+        }
 
-        if (!hasBuiltin) {
+        // 守护进程里子进程不能继承客户端的标准流，只能经过 JVM 转发
+        if (!hasBuiltin && inheritsStdio()) {
             // ---- 策略 A: 纯外部命令管道 (最简单的情况) ----
-            executeExternalPipeline(processBuilders, commandLine);
+            return executeExternalPipeline(processBuilders, commandLine, timer);
         } else {
             // ---- 策略 B: 包含内置命令的混合管道 (复杂的情况) ----
-            executeMixedPipeline(commands, commandLine);
+            return executeMixedPipeline(commands, commandLine, timer);
         }
     }
 
-    private static void executeExternalPipeline(List<ProcessBuilder> processBuilders, CommandLine commandLine)
-            throws IOException, InterruptedException {
-        var lastPb = processBuilders.getLast();
-        if (commandLine.outRedirect != null) {
-            var file = new File(commandLine.outRedirect);
-            if (commandLine.outAppend) {
-                lastPb.redirectOutput(ProcessBuilder.Redirect.appendTo(file));
-            } else {
-                lastPb.redirectOutput(file);
-            }
-        } else {
-            lastPb.redirectOutput(ProcessBuilder.Redirect.INHERIT);
-        }
-        if (commandLine.errRedirect != null) {
-            var file = new File(commandLine.errRedirect);
-            if (commandLine.errAppend) {
-                lastPb.redirectError(ProcessBuilder.Redirect.appendTo(file));
-            } else {
-                lastPb.redirectError(file);
+    /**
+     * Starts the pipeline in the background, registers it in the job table and returns immediately.
+     */
+    private static int startJob(CommandLine commandLine, List<ProcessBuilder> processBuilders, boolean hasBuiltin)
+            throws IOException {
+        CompletableFuture<Integer> status;
+        String pid = "";
+        if (!hasBuiltin && inheritsStdio()) {
+            // 纯外部命令：由 onExit() 通知完成，不占用等待线程
+            var processes = startExternalPipeline(processBuilders, commandLine);
+            if (processes == null) {
+                return NOT_FOUND_STATUS;
             }
+            var lastProcess = processes.getLast();
+            status = lastProcess.onExit().thenApply(Process::exitValue);
+            pid = " " + lastProcess.pid();
         } else {
-            lastPb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            status = CompletableFuture.supplyAsync(() -> {
+                try {
+                    var statuses = executeMixedPipeline(commandLine.commands, commandLine, new CommandTimer());
+                    return statuses[statuses.length - 1];
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, backgroundExecutor);
         }
+        var job = jobTable.add(commandLine.text, status);
+        stdout().println("[" + job.id() + "]" + pid);
+        return 0;
+    }
 
-        List<Process> processes = ProcessBuilder.startPipeline(processBuilders);
-
-        var lastProcess = processes.getLast();
-        lastProcess.waitFor();
+    private static int[] executeExternalPipeline(List<ProcessBuilder> processBuilders, CommandLine commandLine,
+                                                 CommandTimer timer) throws IOException, InterruptedException {
+        var processes = startExternalPipeline(processBuilders, commandLine);
+        if (processes == null) {
+            return new int[]{NOT_FOUND_STATUS};
+        }
+        timer.lap(CommandTimer.Phase.SPAWN);
+        var statuses = new int[processes.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            statuses[i] = processes.get(i).waitFor();
+        }
+        timer.lap(CommandTimer.Phase.WAIT);
+        return statuses;
     }
 
+    /**
+     * Starts the processes of a pipeline, or reports the command that could not be run and returns
+     * null, as when it is not on {@code PATH}.
+     */
+    private static List<Process> startProcesses(List<ProcessBuilder> processBuilders, List<Command> commands) {
+        try {
+            return ProcessBuilder.startPipeline(processBuilders);
+        } catch (IOException e) {
+            var failed = commands.getFirst().command;
+            for (int k = 0; k < processBuilders.size(); k++) {
+                var program = processBuilders.get(k).command().getFirst();
+                if (e.getMessage() != null && e.getMessage().startsWith("Cannot run program \"" + program + "\"")) {
+                    failed = commands.get(k).command;
+                    break;
+                }
+            }
+            stdout().println(failed + ": command not found");
+            return null;
+        }
+    }
 
-    private static void executeMixedPipeline(List<Command> commands, CommandLine commandLine) throws Exception {
-        InputStream nextInputStream = System.in;
+    /**
+     * Starts a pipeline of external commands only, or returns null if one of them could not be run.
+     */
+    private static List<Process> startExternalPipeline(List<ProcessBuilder> processBuilders, CommandLine commandLine)
+            throws IOException {
+        if (commandLine.inRedirect != null) {
+            // 由内核把文件直接交给第一个子进程
+            processBuilders.getFirst().redirectInput(currentDirectory().resolve(commandLine.inRedirect).toFile());
+        } else if (commandLine.background && commandLine.hereString == null) {
+            processBuilders.getFirst().redirectInput(NULL_DEVICE);
+        }
+        processBuilders.getLast().redirectOutput(processRedirect(commandLine.outRedirect, commandLine.outAppend));
+
+        var errRedirect = processRedirect(commandLine.errRedirect, commandLine.errAppend);
+        if (commandLine.errRedirect != null && !commandLine.errAppend && processBuilders.size() > 1) {
+            // 多个进程写同一个文件：先截断一次，再全部以追加方式打开，避免互相覆盖
+            FileChannel.open(errRedirect.file().toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING).close();
+            errRedirect = ProcessBuilder.Redirect.appendTo(errRedirect.file());
+        }
+        for (var processBuilder : processBuilders) {
+            processBuilder.redirectError(errRedirect);
+        }
 
-        for (int i = 0; i < commands.size(); i++) {
-            var command = commands.get(i);
-            boolean isLastCommand = (i == commands.size() - 1);
+        var processes = startProcesses(processBuilders, commandLine.commands);
+        if (processes != null && commandLine.hereString != null) {
+            var stdin = processes.getFirst().getOutputStream();
+            backgroundExecutor.submit(() -> pump(hereString(commandLine), stdin));
+        }
+        return processes;
+    }
 
-            // 用来连接到下一个命令的管道
-            PipedOutputStream pipeOut = new PipedOutputStream();
-            // 如果不是最后一个命令，下一个命令的输入就是这个管道的输入端
-            InputStream downstreamInput = isLastCommand ? null : new PipedInputStream(pipeOut);
 
-            // 决定当前命令的输出目标
-            OutputStream currentOutputStream;
-            if (isLastCommand) {
-                currentOutputStream = getFinalOutputStream(commandLine); // 可能是 System.out 或文件
-            } else {
-                currentOutputStream = pipeOut; // 输出到管道
+    private static int[] executeMixedPipeline(List<Command> commands, CommandLine commandLine, CommandTimer timer)
+            throws Exception {
+        // 最后一个阶段是外部命令时由子进程自己打开重定向文件，否则由 shell 打开
+        var lastCommand = commands.getLast();
+        var lastIsBuiltin = findBuiltin(lastCommand) != null;
+        var finalOutputStream = lastIsBuiltin
+                ? openRedirect(commandLine.outRedirect, commandLine.outAppend, stdout())
+                : stdout();
+        // 所有阶段共用同一个错误输出，只打开一次
+        var finalErrorStream = openRedirect(commandLine.errRedirect, commandLine.errAppend, stderr());
+        // 守护进程里没有可以继承的终端，输出要从子进程泵送出来
+        var outputToChild = commandLine.outRedirect != null || inheritsStdio();
+        var inheritErr = finalErrorStream == stderr() && inheritsStdio();
+        // 每个阶段要么是一个外部进程，要么是一个内置命令任务
+        var processes = new Process[commands.size()];
+        @SuppressWarnings("unchecked")
+        var builtinTasks = (Future<Integer>[]) new Future<?>[commands.size()];
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            InputStream nextInputStream = commandLine.background ? InputStream.nullInputStream() : stdin();
+            if (commandLine.hereString != null) {
+                nextInputStream = hereString(commandLine);
+            } else if (commandLine.inRedirect != null
+                    && findBuiltin(commands.getFirst()) != null) {
+                nextInputStream = Channels.newInputStream(FileChannel.open(currentDirectory().resolve(commandLine.inRedirect)));
             }
 
-            OutputStream currentErrorStream = getFinalErrorStream(commandLine); // 简化：所有错误都去最终目的地
-
-            var buildIn = BuiltInCommand.of(command.command);
-            if (buildIn != null) {
-                // -- 执行内置命令 --
-                try {
-                    // 内置命令是同步的，直接在当前线程执行
-                    buildIn.run(command.args, nextInputStream, currentOutputStream, currentErrorStream);
-                } finally {
-                    if (currentOutputStream != System.out) {
-                        // 执行完后必须关闭输出流，以通知下游 EOF
-                        currentOutputStream.close();
+            // 所有阶段同时启动，阶段之间通过有界的管道缓冲区连接
+            for (int i = 0; i < commands.size(); ) {
+                var command = commands.get(i);
+                var buildIn = findBuiltin(command);
+                // 内置命令单独占一个阶段；连续的外部命令合并成一个阶段，由内核直接连接
+                int end = i + 1;
+                if (buildIn == null) {
+                    while (end < commands.size()
+                            && findBuiltin(commands.get(end)) == null) {
+                        end++;
                     }
                 }
-            } else {
-                // -- 执行外部命令 --
-                var processBuilder = new ProcessBuilder(command.getCommandWithArgs());
-                var process = processBuilder.start();
-
-                // 使用虚拟线程并发处理 I/O
-                try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
-                    final InputStream finalNextInputStream = nextInputStream;
-                    if (finalNextInputStream != System.in) {
+                boolean isLastStage = (end == commands.size());
+
+                OutputStream currentOutputStream;
+                InputStream downstreamInput = null;
+                if (isLastStage) {
+                    currentOutputStream = finalOutputStream; // 可能是标准输出或文件
+                } else if (command.compound != null || commands.get(end).compound != null) {
+                    // 复合命令里的各个命令在不同的线程里读写，PipedInputStream 要求两端各是一个线程
+                    var pipe = new StagePipe(PIPE_BUFFER_SIZE);
+                    downstreamInput = pipe.source();
+                    currentOutputStream = pipe.sink();
+                } else {
+                    var pipeOut = new PipedOutputStream();
+                    downstreamInput = new PipedInputStream(pipeOut, PIPE_BUFFER_SIZE);
+                    currentOutputStream = pipeOut; // 输出到管道
+                }
+
+                final InputStream currentInputStream = nextInputStream;
+                final OutputStream finalCurrentOutputStream = currentOutputStream;
+                if (buildIn != null) {
+                    // -- 内置命令在自己的虚拟线程中执行 --
+                    builtinTasks[i] = executor.submit(() -> {
+                        // 内置命令的输出先写入缓冲区，命令结束时才刷新
+                        var pipe = isLastStage ? null : new PipeOutput(finalCurrentOutputStream);
+                        var out = OutputSink.of(pipe != null ? pipe : finalCurrentOutputStream);
+                        var err = OutputSink.of(finalErrorStream);
+                        try {
+                            return buildIn.run(command.args, currentInputStream, out, err);
+                        } catch (IOException e) {
+                            if (pipe != null && pipe.broken) {
+                                // 下游提前关闭了管道，相当于 SIGPIPE
+                                return SIGPIPE_STATUS;
+                            }
+                            err.println(command.command + ": " + describe(e));
+                            return 1;
+                        } finally {
+                            flushQuietly(out);
+                            flushQuietly(err);
+                            closePipe(currentInputStream);
+                            // 执行完后必须关闭输出流，以通知下游 EOF
+                            closePipe(finalCurrentOutputStream);
+                        }
+                    });
+                } else {
+                    // -- 执行一段连续的外部命令，内部用操作系统管道连接，只在两端经过 JVM --
+                    var processBuilders = new ArrayList<ProcessBuilder>();
+                    for (var external : commands.subList(i, end)) {
+                        var processBuilder = processBuilder(external.getCommandWithArgs());
+                        if (inheritErr) {
+                            processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                        }
+                        processBuilders.add(processBuilder);
+                    }
+                    if (i == 0 && commandLine.inRedirect != null) {
+                        processBuilders.getFirst().redirectInput(currentDirectory().resolve(commandLine.inRedirect).toFile());
+                    } else if (i == 0 && commandLine.background && commandLine.hereString == null) {
+                        processBuilders.getFirst().redirectInput(NULL_DEVICE);
+                    }
+                    if (isLastStage && outputToChild) {
+                        processBuilders.getLast()
+                                .redirectOutput(processRedirect(commandLine.outRedirect, commandLine.outAppend));
+                    }
+
+                    var started = startProcesses(processBuilders, commands.subList(i, end));
+                    if (started == null) {
+                        // 和 bash 一样，其余阶段照常运行，这一段的两端直接关闭
+                        for (int k = i; k < end; k++) {
+                            builtinTasks[k] = CompletableFuture.completedFuture(NOT_FOUND_STATUS);
+                        }
+                        closePipe(currentInputStream);
+                        closePipe(finalCurrentOutputStream);
+                        nextInputStream = downstreamInput;
+                        i = end;
+                        continue;
+                    }
+                    for (int k = 0; k < started.size(); k++) {
+                        processes[i + k] = started.get(k);
+                    }
+
+                    var first = started.getFirst();
+                    if (i == 0 && commandLine.inRedirect != null) {
+                        // 子进程直接读重定向的文件，不能再把 shell 的输入泵给它
+                    } else if (currentInputStream != stdin()) {
                         // 如果输入来自上一个命令的管道，则正常泵送
-                        executor.submit(() -> {
-                            try (OutputStream os = process.getOutputStream()) {
-                                finalNextInputStream.transferTo(os);
-                            } catch (IOException e) { /* ... */ }
-                        });
+                        executor.submit(() -> pump(currentInputStream, first.getOutputStream()));
+                    } else if (currentInputStream != System.in) {
+                        // 客户端或上游的标准输入可能永远不结束，不等待这个泵送线程
+                        backgroundExecutor.submit(() -> pump(currentInputStream, first.getOutputStream()));
                     } else {
                         // 如果输入是 System.in，我们不启动泵送线程，
                         // 而是直接关闭子进程的输入流，因为它不需要
-                        process.getOutputStream().close();
+                        first.getOutputStream().close();
+                    }
+                    if (!isLastStage || !outputToChild) {
+                        var last = started.getLast();
+                        executor.submit(() -> pump(last.getInputStream(), finalCurrentOutputStream));
                     }
+                    if (!inheritErr) {
+                        for (var process : started) {
+                            executor.submit(() -> pump(process.getErrorStream(), finalErrorStream, false));
+                        }
+                    }
+                }
 
-                    final OutputStream finalCurrentOutputStream = currentOutputStream;
-                    executor.submit(() -> {
-                        try (InputStream is = process.getInputStream()) {
-                            is.transferTo(finalCurrentOutputStream);
-                        } catch (IOException e) { /* ... */ }
-                    });
+                // 为下一次循环准备 "接力棒"
+                nextInputStream = downstreamInput;
+                i = end;
+            }
+            // 所有阶段都已启动，之后的时间都算作等待
+            timer.lap(CommandTimer.Phase.SPAWN);
+            // executor.close() 会等待所有阶段和泵送线程结束
+        } finally {
+            for (var process : processes) {
+                if (process != null) {
+                    process.waitFor();
+                }
+            }
+            if (finalOutputStream != stdout()) {
+                finalOutputStream.close();
+            }
+            if (finalErrorStream != stderr()) {
+                finalErrorStream.close();
+            }
+        }
 
-                    final OutputStream finalCurrentErrorStream = currentErrorStream;
-                    executor.submit(() -> {
-                        try (InputStream is = process.getErrorStream()) {
-                            is.transferTo(finalCurrentErrorStream);
-                        } catch (IOException e) { /* ... */ }
-                    });
+        var statuses = new int[commands.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            if (processes[i] != null) {
+                statuses[i] = processes[i].exitValue();
+                continue;
+            }
+            try {
+                statuses[i] = builtinTasks[i].get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception cause) {
+                    throw cause;
+                }
+                throw e;
+            }
+        }
+        timer.lap(CommandTimer.Phase.WAIT);
+        return statuses;
+    }
 
-                    process.waitFor(); // 等待当前进程结束
-                } finally {
-                    if (currentOutputStream != System.out) {
-                        // 执行完后必须关闭输出流，以通知下游 EOF
-                        currentOutputStream.close();
-                    }
+    /**
+     * The text of a {@code <<<} here-string as input, with the newline bash adds.
+     */
+    private static InputStream hereString(CommandLine commandLine) {
+        return new ByteArrayInputStream((commandLine.hereString + "\n").getBytes());
+    }
+
+    /**
+     * Copies {@code from} into {@code to} until EOF, then closes both ends so that the upstream
+     * stage sees a broken pipe and the downstream stage sees EOF.
+     */
+    private static void pump(InputStream from, OutputStream to) {
+        pump(from, to, true);
+    }
+
+    private static void pump(InputStream from, OutputStream to, boolean closeTarget) {
+        try {
+            if (to instanceof PrintStream print) {
+                // PrintStream 吞掉写入错误，自己检查，好让上游收到 SIGPIPE
+                var buffer = new byte[PIPE_BUFFER_SIZE];
+                int n;
+                while ((n = from.read(buffer)) >= 0 && !print.checkError()) {
+                    print.write(buffer, 0, n);
+                }
+            } else {
+                from.transferTo(to);
+            }
+        } catch (IOException e) {
+            // 任意一端被关闭，停止泵送
+        } finally {
+            closePipe(from);
+            if (closeTarget) {
+                closePipe(to);
+            } else {
+                try {
+                    to.flush();
+                } catch (IOException e) {
+                    // Nothing left to flush into
                 }
             }
+        }
+    }
 
-            // 为下一次循环准备 "接力棒"
-            if (!isLastCommand) {
-                nextInputStream = downstreamInput;
+    /**
+     * The output of a builtin stage into the next one, remembering whether a write failed: that is
+     * how the builtin learns the downstream stage has gone away.
+     */
+    private static class PipeOutput extends FilterOutputStream {
+        volatile boolean broken;
+
+        PipeOutput(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            try {
+                out.write(bytes, offset, length);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                broken = true;
+                throw e;
             }
         }
     }
 
+    /**
+     * An I/O error the way the shell reports it, such as {@code h: No such file or directory}.
+     */
+    private static String describe(IOException e) {
+        return switch (e) {
+            case NoSuchFileException missing -> missing.getFile() + ": No such file or directory";
+            case AccessDeniedException denied -> denied.getFile() + ": Permission denied";
+            case FileSystemException other when other.getReason() != null -> other.getFile() + ": " + other.getReason();
+            default -> e.getMessage();
+        };
+    }
+
+    private static void flushQuietly(OutputStream stream) {
+        try {
+            stream.flush();
+        } catch (IOException e) {
+            // 下游已经关闭
+        }
+    }
+
+    private static void closePipe(Closeable stream) {
+        if (stream == System.in || stream == System.out || stream == System.err
+                || stream == stdin() || stream == stdout() || stream == stderr()) {
+            return;
+        }
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Nothing left to notify
+        }
+    }
+
     interface RunBuiltin {
-        void run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception;
+        /**
+         * Runs the builtin and returns its exit status.
+         */
+        int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception;
     }
 
-    private static class CommandLine {
+    static class CommandLine {
         List<Command> commands;
+        String inRedirect;
+        String hereString;
         String outRedirect;
         String errRedirect;
         boolean outAppend;
         boolean errAppend;
+        boolean background;
+        boolean timed;
+        String text;
     }
 
-    private static String findExecutable(String commandName) {
-        var pathEnv = System.getenv(PATH);
-        var directories = pathEnv.split(System.getProperty("path.separator"));
+    /**
+     * Returns what runs {@code name} in-process: a shell builtin, or one of the {@link CoreUtils}
+     * when it understands {@code args} and {@code COREUTILS} is {@code builtin}.
+     */
+    private static RunBuiltin findBuiltin(Command command) {
+        return command.compound != null ? subshell(command.compound) : findBuiltin(command.command, command.args);
+    }
 
-        for (var dir : directories) {
-            var filePath = Paths.get(dir, commandName);
-            if (Files.isExecutable(filePath)) {
-                return filePath.toAbsolutePath().toString();
-            }
+    private static RunBuiltin findBuiltin(String name, String[] args) {
+        var builtin = BuiltInCommand.of(name);
+        if (builtin != null || !"builtin".equals(getenv(COREUTILS))) {
+            return builtin;
         }
-
-        return null;
+        return CoreUtils.of(name, args);
     }
 
-    private static List<String> findExecutables() {
-        var pathEnv = System.getenv(PATH);
-        var directories = pathEnv.split(System.getProperty("path.separator"));
-        var executables = new ArrayList<String>();
-
-        for (var dir : directories) {
-            var directoryPath = Paths.get(dir);
-            if (Files.isDirectory(directoryPath)) {
-                try (var stream = Files.list(directoryPath)) {
-                    stream.filter(Files::isExecutable)
-                            .forEach(path -> executables.add(path.getFileName().toString()));
-                } catch (IOException e) {
-                    // Ignore directories that cannot be read
-                }
-            }
-        }
+    static Path currentDirectory() {
+        return session().pwd;
+    }
 
-        for (var commandName : BuiltInCommand.values()) {
-            executables.add(commandName.name());
-        }
-        return executables;
+    private static String findExecutable(String commandName) {
+        return commandHashTable.find(commandName);
     }
 
 }
@@ -5,27 +5,69 @@ import org.jline.reader.Completer;
 import org.jline.reader.LineReader;
 import org.jline.reader.ParsedLine;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 public class MyCompleter implements Completer {
 
-    private final Trie trie = new Trie();
+    private static final String HOME = "~";
+    private static final int MAX_FILE_CANDIDATES = 100;
+    private static final int MAX_FUZZY_CANDIDATES = 20;
+    private static final long FUZZY_BUDGET_NANOS = 20_000_000L;
+
+    private final ExecutableIndex executableIndex;
+    private final Supplier<Path> pwdSupplier;
+    private final boolean fuzzy;
+    private final DirectoryListingCache directoryListingCache = new DirectoryListingCache();
     private String lastPrefix = null;
 
-    public MyCompleter(List<String> executables) {
-        for (String cmd : executables) {
-            trie.insert(cmd);
-        }
+    public MyCompleter(ExecutableIndex executableIndex, Supplier<Path> pwdSupplier) {
+        this(executableIndex, pwdSupplier, false);
+    }
+
+    /**
+     * @param fuzzy whether commands with no prefix match are completed by subsequence instead; the
+     *              line reader must use a {@link FuzzyCompletionMatcher} for these to be shown
+     */
+    public MyCompleter(ExecutableIndex executableIndex, Supplier<Path> pwdSupplier, boolean fuzzy) {
+        this.executableIndex = executableIndex;
+        this.pwdSupplier = pwdSupplier;
+        this.fuzzy = fuzzy;
     }
 
     @Override
     public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
         String currentWord = line.word();
+        if (isCommandPosition(line)) {
+            completeCommand(reader, currentWord, candidates);
+        } else {
+            completeFilename(reader, currentWord, candidates);
+        }
+    }
+
+    private static boolean isCommandPosition(ParsedLine line) {
+        var index = line.wordIndex();
+        return index == 0 || line.words().get(index - 1).equals("|");
+    }
+
+    private void completeCommand(LineReader reader, String currentWord, List<Candidate> candidates) {
+        // 使用当前已发布的索引，必要时在后台刷新
+        var trie = executableIndex.trie();
+        executableIndex.refreshIfStale();
 
         var allMatches = trie.getWordsWithPrefix(currentWord);
 
         if (allMatches.isEmpty()) {
+            if (fuzzy && !currentWord.isEmpty()) {
+                // 只返回得分最高的几个，交给 JLine 显示
+                for (var match : trie.getFuzzyMatches(currentWord, MAX_FUZZY_CANDIDATES, FUZZY_BUDGET_NANOS)) {
+                    candidates.add(new Candidate(match));
+                }
+            }
             return;
         }
 
@@ -33,30 +75,118 @@ public class MyCompleter implements Completer {
             candidates.add(new Candidate(allMatches.getFirst()));
         } else {
             String lcp = trie.getLongestCommonPrefix(currentWord);
-            if (lcp.length() > currentWord.length()) {
-                candidates.add(new Candidate(
-                        lcp,    // value to insert
-                        lcp,    // value to display
-                        null,   // group
-                        null,   // description
-                        null,   // suffix
-                        null,   // key
-                        false   // <-- 关键！告诉 JLine 这是一个不完整的补全，不要加空格！
-                ));
+            completeMultiple(reader, currentWord, lcp, allMatches, 0, candidates);
+        }
+    }
+
+    private void completeFilename(LineReader reader, String currentWord, List<Candidate> candidates) {
+        if (currentWord.equals(HOME)) {
+            // 单独的 ~ 补全成主目录，和 bash 一样
+            candidates.add(partialCandidate(HOME + "/"));
+            return;
+        }
+        var slash = currentWord.lastIndexOf('/');
+        var directoryPart = currentWord.substring(0, slash + 1);
+        var namePrefix = currentWord.substring(slash + 1);
+        var directory = pwdSupplier.get().resolve(expandHome(directoryPart)).normalize();
+
+        var listing = directoryListingCache.get(directory, namePrefix);
+        if (listing == null) {
+            return;
+        }
+
+        // 名字已排序，同一前缀的名字是连续的一段；不以 "." 开头时跳过隐藏文件那一段
+        var from = listing.from(namePrefix);
+        var to = listing.to(namePrefix);
+        var ranges = new ArrayList<int[]>();
+        if (namePrefix.isEmpty()) {
+            var hiddenFrom = listing.from(".");
+            var hiddenTo = listing.to(".");
+            ranges.add(new int[]{from, hiddenFrom});
+            ranges.add(new int[]{hiddenTo, to});
+        } else {
+            ranges.add(new int[]{from, to});
+        }
+        ranges.removeIf(range -> range[0] >= range[1]);
+        if (ranges.isEmpty()) {
+            return;
+        }
+
+        var total = 0;
+        String lcp = null;
+        var shown = new ArrayList<String>();
+        for (var range : ranges) {
+            total += range[1] - range[0];
+            var rangePrefix = listing.commonPrefix(range[0], range[1]);
+            lcp = lcp == null ? rangePrefix : commonPrefix(lcp, rangePrefix);
+            for (int i = range[0]; i < range[1] && shown.size() < MAX_FILE_CANDIDATES; i++) {
+                shown.add(listing.name(i));
+            }
+        }
+
+        if (!listing.complete()) {
+            // 目录还在后台读取：先列出已经读到的匹配，不插入可能不完整的公共前缀
+            printMatches(reader, shown, "  ...");
+            lastPrefix = null;
+        } else if (total == 1) {
+            var name = shown.getFirst();
+            if (Files.isDirectory(directory.resolve(name))) {
+                candidates.add(partialCandidate(directoryPart + name + "/"));
             } else {
-                // Multiple matches but no further common prefix
-                if (currentWord.equals(lastPrefix)) {
-                    Collections.sort(allMatches);
-                    var matchesStr = String.join("  ", allMatches);
-                    System.out.println("\n" + matchesStr);
-                    reader.callWidget(LineReader.REDRAW_LINE);
-                    lastPrefix = null;
-                } else {
-                    reader.getTerminal().puts(org.jline.utils.InfoCmp.Capability.bell);
-                    lastPrefix = currentWord;
-                }
+                candidates.add(new Candidate(directoryPart + name));
             }
+        } else {
+            completeMultiple(reader, currentWord, directoryPart + lcp, shown, total - shown.size(), candidates);
+        }
+    }
+
+    private void completeMultiple(LineReader reader, String currentWord, String lcp, List<String> matches,
+                                  int hidden, List<Candidate> candidates) {
+        if (lcp.length() > currentWord.length()) {
+            candidates.add(partialCandidate(lcp));
+        } else {
+            // Multiple matches but no further common prefix
+            if (currentWord.equals(lastPrefix)) {
+                printMatches(reader, matches, hidden > 0 ? String.format("  ... and %d more", hidden) : "");
+                lastPrefix = null;
+            } else {
+                reader.getTerminal().puts(org.jline.utils.InfoCmp.Capability.bell);
+                lastPrefix = currentWord;
+            }
+        }
+    }
+
+    private static void printMatches(LineReader reader, List<String> matches, String more) {
+        Collections.sort(matches);
+        System.out.println("\n" + String.join("  ", matches) + more);
+        reader.callWidget(LineReader.REDRAW_LINE);
+    }
+
+    private static Candidate partialCandidate(String value) {
+        return new Candidate(
+                value,  // value to insert
+                value,  // value to display
+                null,   // group
+                null,   // description
+                null,   // suffix
+                null,   // key
+                false   // <-- 关键！告诉 JLine 这是一个不完整的补全，不要加空格！
+        );
+    }
+
+    private static String expandHome(String path) {
+        if (path.equals(HOME) || path.startsWith(HOME + "/")) {
+            return Main.homeDirectory() + path.substring(HOME.length());
+        }
+        return path;
+    }
+
+    private static String commonPrefix(String a, String b) {
+        int length = 0;
+        while (length < a.length() && length < b.length() && a.charAt(length) == b.charAt(length)) {
+            length++;
         }
+        return a.substring(0, length);
     }
 
 }
@@ -0,0 +1,198 @@
+package org.winry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Buffered output for builtins. Text is encoded straight into one reusable byte buffer, which is
+ * written out when it fills up and when the command finishes. When the target is the terminal every
+ * line is flushed, so interactive output still appears as it is produced.
+ * <p>
+ * A sink opened on a redirection target writes to a {@link FileChannel} through a large direct
+ * buffer and owns the channel; it is shared by every stage of a pipeline, so all methods are
+ * synchronized. Files are copied into it with {@link FileChannel#transferTo}.
+ */
+public class OutputSink extends OutputStream {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int FILE_BUFFER_SIZE = 256 * 1024;
+
+    private final OutputStream out;
+    private final FileChannel channel;
+    private final boolean interactive;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+
+    public OutputSink(OutputStream out, Charset charset, boolean interactive) {
+        this(out, null, charset, interactive, ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    private OutputSink(OutputStream out, FileChannel channel, Charset charset, boolean interactive, ByteBuffer buffer) {
+        this.out = out;
+        this.channel = channel;
+        this.interactive = interactive;
+        this.buffer = buffer;
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Opens {@code file} for a {@code >} or {@code >>} redirection.
+     */
+    public static OutputSink open(Path file, boolean append) throws IOException {
+        var channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING);
+        return new OutputSink(null, channel, Charset.defaultCharset(), false,
+                ByteBuffer.allocateDirect(FILE_BUFFER_SIZE));
+    }
+
+    /**
+     * Returns {@code out} if it already is a sink, otherwise wraps it. Standard output and error
+     * count as interactive when the shell has a console.
+     */
+    public static OutputSink of(OutputStream out) {
+        if (out instanceof OutputSink sink) {
+            return sink;
+        }
+        var interactive = (out == System.out || out == System.err) && System.console() != null;
+        return new OutputSink(out, Charset.defaultCharset(), interactive);
+    }
+
+    public synchronized OutputSink print(CharSequence text) throws IOException {
+        var chars = CharBuffer.wrap(text);
+        encoder.reset();
+        while (encoder.encode(chars, buffer, true).isOverflow()) {
+            drain();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            drain();
+        }
+        return this;
+    }
+
+    public synchronized OutputSink print(long value) throws IOException {
+        if (value < 0) {
+            write('-');
+            if (value == Long.MIN_VALUE) {
+                return print(Long.toString(value).substring(1));
+            }
+            value = -value;
+        }
+        var start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        write(digits, start, digits.length - start);
+        return this;
+    }
+
+    public synchronized OutputSink println(CharSequence text) throws IOException {
+        print(text);
+        write('\n');
+        if (interactive) {
+            flush();
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length > buffer.remaining()) {
+            drain();
+            if (length > buffer.capacity()) {
+                if (channel != null) {
+                    writeFully(ByteBuffer.wrap(bytes, offset, length));
+                } else {
+                    out.write(bytes, offset, length);
+                }
+                return;
+            }
+        }
+        buffer.put(bytes, offset, length);
+    }
+
+    /**
+     * Copies {@code count} bytes of {@code file} from {@code position}. Into a file the copy stays
+     * in the kernel; into anything else it goes through a mapping of {@code file}.
+     */
+    public synchronized void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flush();
+        var target = channel != null ? channel : Channels.newChannel(out);
+        var end = position + count;
+        while (position < end) {
+            var n = file.transferTo(position, end - position, target);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+        }
+        if (channel == null) {
+            out.flush();
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        drain();
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Flushes the buffered output. A target stream is left open, since it belongs to the caller;
+     * a redirection file is closed.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            flush();
+        } else if (channel.isOpen()) {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        if (channel != null) {
+            buffer.flip();
+            writeFully(buffer);
+        } else {
+            out.write(buffer.array(), 0, buffer.position());
+        }
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+}
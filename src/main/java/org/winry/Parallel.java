@@ -0,0 +1,196 @@
+package org.winry;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code parallel} builtin: {@code parallel [-j N] [-k] command [args] [::: inputs]}.
+ * <p>
+ * Runs {@code command} once per input, with {@code {}} in the arguments replaced by the input, or
+ * the input appended when there is no {@code {}}. Inputs come after {@code :::} or, without it, one
+ * per line from standard input. At most N children run at once (default: one per core). Each
+ * child's output is buffered and written in one piece when it finishes, in completion order or, with
+ * {@code -k}, in input order as soon as every earlier job has been written. The exit status is the number of failed jobs, capped at 101.
+ */
+public class Parallel {
+
+    private static final String PLACEHOLDER = "{}";
+    private static final String INPUT_SEPARATOR = ":::";
+    private static final int MAX_STATUS = 101;
+
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private boolean keepOrder;
+    private final List<String> template = new ArrayList<>();
+    private List<String> inputs;
+
+    public static int run(String[] args, InputStream in, OutputStream out, OutputStream err) throws Exception {
+        var parallel = new Parallel();
+        var usage = parallel.parseArgs(args);
+        if (usage != null) {
+            var sink = OutputSink.of(err);
+            sink.println("parallel: " + usage);
+            sink.flush();
+            return 255;
+        }
+        if (parallel.inputs == null) {
+            parallel.inputs = readLines(in);
+        }
+        return parallel.execute(out, err);
+    }
+
+    private String parseArgs(String[] args) {
+        var i = 0;
+        for (; i < args.length && template.isEmpty(); i++) {
+            var arg = args[i];
+            if (arg.equals("-k")) {
+                keepOrder = true;
+            } else if (arg.equals("-j")) {
+                if (i + 1 == args.length) {
+                    return "-j requires a number";
+                }
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    return "invalid job count: " + args[i];
+                }
+                if (jobs < 1) {
+                    return "invalid job count: " + jobs;
+                }
+            } else if (arg.equals(INPUT_SEPARATOR)) {
+                return "missing command";
+            } else {
+                template.add(arg);
+            }
+        }
+        for (; i < args.length; i++) {
+            if (args[i].equals(INPUT_SEPARATOR)) {
+                inputs = Arrays.asList(args).subList(i + 1, args.length);
+                break;
+            }
+            template.add(args[i]);
+        }
+        return template.isEmpty() ? "missing command" : null;
+    }
+
+    private int execute(OutputStream out, OutputStream err) throws Exception {
+        var failed = new AtomicInteger();
+        var permits = new Semaphore(jobs);
+        var results = new ArrayList<Future<?>>(inputs.size());
+        var ordered = keepOrder ? new InOrder(inputs.size()) : null;
+
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < inputs.size(); i++) {
+                var index = i;
+                var input = inputs.get(i);
+                permits.acquire();
+                results.add(executor.submit(() -> {
+                    try {
+                        var output = runOne(input);
+                        if (output.status != 0) {
+                            failed.incrementAndGet();
+                        }
+                        if (ordered != null) {
+                            ordered.complete(index, output, out, err);
+                        } else {
+                            output.writeTo(out, err);
+                        }
+                        return null;
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+        }
+        for (var result : results) {
+            result.get();
+        }
+        return Math.min(failed.get(), MAX_STATUS);
+    }
+
+    private Output runOne(String input) throws Exception {
+        var command = new ArrayList<String>(template.size() + 1);
+        var substituted = false;
+        for (var arg : template) {
+            if (arg.contains(PLACEHOLDER)) {
+                command.add(arg.replace(PLACEHOLDER, input));
+                substituted = true;
+            } else {
+                command.add(arg);
+            }
+        }
+        if (!substituted) {
+            command.add(input);
+        }
+
+        Process process;
+        try {
+            process = Main.processBuilder(command.toArray(String[]::new)).start();
+        } catch (IOException e) {
+            return new Output(new byte[0], (command.getFirst() + ": command not found\n").getBytes(), 127);
+        }
+        process.getOutputStream().close();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var stderr = executor.submit(() -> process.getErrorStream().readAllBytes());
+            var stdout = process.getInputStream().readAllBytes();
+            return new Output(stdout, stderr.get(), process.waitFor());
+        }
+    }
+
+    private static List<String> readLines(InputStream in) throws IOException {
+        var lines = new ArrayList<String>();
+        var reader = new BufferedReader(new InputStreamReader(in));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Outputs of {@code -k} jobs that finished before an earlier one, each written and dropped as
+     * soon as all the jobs before it have been.
+     */
+    private static class InOrder {
+        private final Output[] finished;
+        private int next;
+
+        InOrder(int size) {
+            finished = new Output[size];
+        }
+
+        synchronized void complete(int index, Output output, OutputStream out, OutputStream err)
+                throws IOException {
+            finished[index] = output;
+            while (next < finished.length && finished[next] != null) {
+                finished[next].writeTo(out, err);
+                finished[next++] = null;
+            }
+        }
+    }
+
+    private record Output(byte[] stdout, byte[] stderr, int status) {
+
+        void writeTo(OutputStream out, OutputStream err) throws IOException {
+            // One job's output is written as a whole so it never interleaves with another's
+            synchronized (Parallel.class) {
+                out.write(stdout);
+                out.flush();
+                err.write(stderr);
+                err.flush();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.winry;
+
+import org.jline.reader.LineReader;
+import org.jline.reader.Widget;
+import org.jline.reader.impl.LineReaderImpl;
+
+/**
+ * Incremental reverse history search bound to {@code Ctrl-R}, answered by a
+ * {@link HistorySearchIndex}. Typing refines the query, {@code Ctrl-R} steps to the next older
+ * match, {@code Enter} runs the match and {@code Ctrl-G} restores the original line. As in bash,
+ * {@code Esc} keeps the match for editing, consuming the rest of an escape sequence such as an
+ * arrow key, and any other control key keeps the match and then runs its usual binding.
+ */
+public class ReverseSearchWidget implements Widget {
+
+    public static final String NAME = "shell-reverse-search";
+
+    private static final int CTRL_G = 7;
+    private static final int BACKSPACE = 8;
+    private static final int ENTER = 13;
+    private static final int NEWLINE = 10;
+    private static final int CTRL_R = 18;
+    private static final int ESCAPE = 27;
+    private static final int DELETE = 127;
+    // 和 bash 的 keyseq-timeout 一样
+    private static final long ESCAPE_SEQUENCE_TIMEOUT_MILLIS = 500;
+
+    private final LineReaderImpl reader;
+    private final HistorySearchIndex index;
+    private final String prompt;
+
+    public ReverseSearchWidget(LineReader reader, HistorySearchIndex index, String prompt) {
+        this.reader = (LineReaderImpl) reader;
+        this.index = index;
+        this.prompt = prompt;
+    }
+
+    @Override
+    public boolean apply() {
+        var buffer = reader.getBuffer();
+        var original = buffer.toString();
+        var query = new StringBuilder();
+        var skip = 0;
+        String match = null;
+
+        while (true) {
+            var found = query.isEmpty() ? null : lookup(query.toString(), skip);
+            if (found != null || query.isEmpty()) {
+                match = found;
+            } else if (skip > 0) {
+                // No older match, stay on the last one
+                skip--;
+            }
+            var failed = !query.isEmpty() && found == null;
+            reader.setPrompt(String.format("(%sreverse-i-search)`%s': ", failed ? "failed " : "", query));
+            buffer.clear();
+            buffer.write(match != null ? match : original);
+            reader.redisplay();
+
+            var c = reader.readCharacter();
+            if (c == CTRL_R) {
+                skip++;
+            } else if (c == BACKSPACE || c == DELETE) {
+                if (!query.isEmpty()) {
+                    query.setLength(query.length() - 1);
+                    skip = 0;
+                }
+            } else if (c == CTRL_G || c == -1) {
+                finish(original);
+                return true;
+            } else if (c == ESCAPE) {
+                finish(match != null ? match : original);
+                skipEscapeSequence();
+                return true;
+            } else if (c == ENTER || c == NEWLINE) {
+                finish(match != null ? match : original);
+                reader.callWidget(LineReader.ACCEPT_LINE);
+                return true;
+            } else if (c < 32) {
+                finish(match != null ? match : original);
+                // 把按键放回去，让它原来的绑定照常执行
+                reader.runMacro(new String(Character.toChars(c)));
+                return true;
+            } else {
+                query.appendCodePoint(c);
+                skip = 0;
+            }
+        }
+    }
+
+    private String lookup(String query, int skip) {
+        var matches = index.search(query, skip + 1);
+        return matches.size() > skip ? matches.get(skip) : null;
+    }
+
+    /**
+     * Reads the rest of a key sequence started by {@code Esc}, so that e.g. {@code [A} of an arrow
+     * key is not inserted into the line.
+     */
+    private void skipEscapeSequence() {
+        var c = reader.peekCharacter(ESCAPE_SEQUENCE_TIMEOUT_MILLIS);
+        if (c < 0) {
+            // Esc by itself
+            return;
+        }
+        reader.readCharacter();
+        if (c == '[') {
+            // CSI: parameter and intermediate bytes, then one final byte in @..~
+            do {
+                c = reader.readCharacter();
+            } while (c >= 0x20 && c < 0x40);
+        } else if (c == 'O') {
+            // SS3, e.g. arrow keys in application mode
+            reader.readCharacter();
+        }
+    }
+
+    private void finish(String line) {
+        reader.setPrompt(prompt);
+        var buffer = reader.getBuffer();
+        buffer.clear();
+        buffer.write(line);
+        reader.redisplay();
+    }
+
+}
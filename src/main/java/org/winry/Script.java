@@ -0,0 +1,88 @@
+package org.winry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A parsed command line: pipelines joined by {@code ;}, {@code &&} and {@code ||}, and the
+ * {@code if}, {@code for}, {@code while} and {@code until} compound commands. Words keep their
+ * source, so a tree parsed once can be run again with different variables.
+ */
+public sealed interface Script {
+
+    /**
+     * A word as parsed. {@code value} is null when it refers to a variable and has to be expanded
+     * from {@code source} when it runs; {@code pattern} is set when it has an unquoted wildcard.
+     */
+    record Word(String source, String value, String pattern) {
+
+        boolean isStatic() {
+            return value != null && pattern == null;
+        }
+    }
+
+    /**
+     * Stages joined by {@code |}. A stage is either the words of a simple command or, when its
+     * entry in {@code compounds} is set, a compound command; its words are then empty.
+     */
+    final class Pipeline implements Script {
+        final List<List<Word>> commands = new ArrayList<>();
+        final List<Script> compounds = new ArrayList<>();
+        Word inRedirect;
+        Word hereString;
+        Word outRedirect;
+        Word errRedirect;
+        boolean outAppend;
+        boolean errAppend;
+        boolean background;
+        boolean timed;
+        String text;
+        // 没有变量和通配符时每次展开的结果都一样，第一次运行后留下来给循环复用
+        Main.CommandLine resolved;
+
+        boolean isStatic() {
+            for (var command : commands) {
+                for (var word : command) {
+                    if (!word.isStatic()) {
+                        return false;
+                    }
+                }
+            }
+            for (var word : new Word[]{inRedirect, hereString, outRedirect, errRedirect}) {
+                if (word != null && word.value == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    record Sequence(List<Script> scripts) implements Script {
+    }
+
+    record AndOr(Script left, Script right, boolean and) implements Script {
+    }
+
+    record Not(Script script) implements Script {
+    }
+
+    /**
+     * {@code if}, its {@code elif}s and an optional {@code else}: runs the branch of the first
+     * condition that succeeds.
+     */
+    record If(List<Script> conditions, List<Script> branches, Script otherwise) implements Script {
+    }
+
+    record Loop(Script condition, Script body, boolean until) implements Script {
+    }
+
+    record For(String name, List<Word> words, Script body) implements Script {
+    }
+
+    /**
+     * {@code break} or, when {@code next} is set, {@code continue}, out of {@code levels} loops.
+     */
+    record Break(boolean next, int levels) implements Script {
+    }
+
+}
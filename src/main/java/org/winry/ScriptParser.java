@@ -0,0 +1,355 @@
+package org.winry;
+
+import org.winry.CommandLexer.TokenType;
+
+import java.io.Serial;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Recursive-descent parser from tokens to a {@link Script}:
+ * <pre>
+ * list      := and-or ((';' | '&amp;' | newline) and-or)*
+ * and-or    := pipeline (('&amp;&amp;' | '||') pipeline)*
+ * pipeline  := ['time'] ['!'] stage ('|' stage)* ['&amp;']
+ * stage     := compound | command
+ * compound  := 'if' list 'then' list ('elif' list 'then' list)* ['else' list] 'fi'
+ *            | 'for' name ['in' word*] ';' 'do' list 'done'
+ *            | ('while' | 'until') list 'do' list 'done'
+ * </pre>
+ * Keywords are only recognized unquoted and where a command starts. A compound command on its own
+ * is returned as it is; piped, redirected, timed or in the background it becomes a stage of a
+ * {@link Script.Pipeline}. Input that stops inside a compound command or after an operator throws
+ * {@link Incomplete}, so the caller can read more.
+ */
+public class ScriptParser {
+
+    /**
+     * The input ends where more is expected.
+     */
+    static class Incomplete extends IllegalArgumentException {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        Incomplete() {
+            super("syntax error: unexpected end of file");
+        }
+    }
+
+    private static final String TIME_KEYWORD = "time";
+    // 这些关键字结束一个列表，由外层的复合命令处理
+    private static final Set<String> TERMINATORS = Set.of("then", "elif", "else", "fi", "do", "done");
+
+    private final CommandLexer lexer = CommandLexer.deferred();
+    private String text;
+    private int count;
+    private int position;
+
+    Script parse(String text) {
+        this.text = text;
+        count = lexer.lex(text);
+        position = 0;
+        var script = list();
+        if (position < count) {
+            throw unexpected();
+        }
+        return script;
+    }
+
+    private Script list() {
+        var scripts = new ArrayList<Script>();
+        while (true) {
+            while (is(TokenType.NEWLINE)) {
+                position++;
+            }
+            if (position == count || isTerminator()) {
+                break;
+            }
+            scripts.add(andOr());
+            if (is(TokenType.SEMI) || is(TokenType.NEWLINE)) {
+                position++;
+            } else if (!(position > 0 && lexer.type(position - 1) == TokenType.BACKGROUND)) {
+                break;
+            }
+        }
+        return scripts.size() == 1 ? scripts.getFirst() : new Script.Sequence(List.copyOf(scripts));
+    }
+
+    private Script andOr() {
+        var script = pipeline();
+        while (is(TokenType.AND) || is(TokenType.OR)) {
+            var and = is(TokenType.AND);
+            position++;
+            while (is(TokenType.NEWLINE)) {
+                position++;
+            }
+            script = new Script.AndOr(script, pipeline(), and);
+        }
+        return script;
+    }
+
+    private Script pipeline() {
+        var timed = false;
+        if (isKeyword(TIME_KEYWORD)) {
+            timed = true;
+            position++;
+        }
+        var negated = false;
+        if (isKeyword("!")) {
+            negated = true;
+            position++;
+        }
+        var script = commands(timed);
+        return negated ? new Script.Not(script) : script;
+    }
+
+    private Script compound() {
+        var keyword = lexer.source(position++);
+        return switch (keyword) {
+            case "if" -> {
+                var conditions = new ArrayList<Script>();
+                var branches = new ArrayList<Script>();
+                Script otherwise = null;
+                do {
+                    conditions.add(required("then"));
+                    expect("then");
+                    branches.add(list());
+                    if (isKeyword("else")) {
+                        position++;
+                        otherwise = list();
+                        break;
+                    }
+                } while (keyword("elif", "fi"));
+                expect("fi");
+                yield new Script.If(List.copyOf(conditions), List.copyOf(branches), otherwise);
+            }
+            case "for" -> {
+                if (!is(TokenType.WORD) || !ShellEnvironment.isName(lexer.source(position))) {
+                    throw position == count ? new Incomplete() : new IllegalArgumentException(
+                            String.format("`%s': not a valid identifier", lexer.source(position)));
+                }
+                var name = lexer.source(position++);
+                while (is(TokenType.NEWLINE)) {
+                    position++;
+                }
+                var words = new ArrayList<Script.Word>();
+                if (isKeyword("in")) {
+                    position++;
+                    while (is(TokenType.WORD)) {
+                        words.add(word(position++));
+                    }
+                }
+                if (is(TokenType.SEMI) || is(TokenType.NEWLINE)) {
+                    position++;
+                }
+                while (is(TokenType.NEWLINE)) {
+                    position++;
+                }
+                expect("do");
+                var body = required("done");
+                expect("done");
+                yield new Script.For(name, List.copyOf(words), body);
+            }
+            default -> {
+                var condition = required("do");
+                expect("do");
+                var body = required("done");
+                expect("done");
+                yield new Script.Loop(condition, body, keyword.equals("until"));
+            }
+        };
+    }
+
+    /**
+     * A list that must not be empty, followed by {@code keyword}, which is left for the caller.
+     */
+    private Script required(String keyword) {
+        var script = list();
+        if (script instanceof Script.Sequence sequence && sequence.scripts().isEmpty()) {
+            throw unexpected();
+        }
+        if (!isKeyword(keyword)) {
+            throw unexpected();
+        }
+        return script;
+    }
+
+    /**
+     * Consumes {@code elif} and returns true, or returns false at {@code end}.
+     */
+    private boolean keyword(String next, String end) {
+        if (isKeyword(next)) {
+            position++;
+            return true;
+        }
+        if (!isKeyword(end)) {
+            throw unexpected();
+        }
+        return false;
+    }
+
+    private void expect(String keyword) {
+        if (!isKeyword(keyword)) {
+            throw unexpected();
+        }
+        position++;
+    }
+
+    private boolean isCompound() {
+        return isKeyword("if") || isKeyword("for") || isKeyword("while") || isKeyword("until");
+    }
+
+    /**
+     * Stages joined by {@code |}, with their redirections and an optional trailing {@code &}.
+     */
+    private Script commands(boolean timed) {
+        var pipeline = new Script.Pipeline();
+        pipeline.timed = timed;
+        var start = position;
+        var words = new ArrayList<Script.Word>();
+        Script compound = null;
+        while (position < count) {
+            var type = lexer.type(position);
+            if (type == TokenType.WORD && words.isEmpty() && compound == null && isCompound()) {
+                compound = compound();
+            } else if (type == TokenType.WORD) {
+                if (compound != null) {
+                    throw unexpected();
+                }
+                words.add(word(position++));
+            } else if (type == TokenType.PIPE) {
+                if (words.isEmpty() && compound == null) {
+                    throw unexpected();
+                }
+                addStage(pipeline, words, compound);
+                compound = null;
+                position++;
+                while (is(TokenType.NEWLINE)) {
+                    position++;
+                }
+                if (position == count) {
+                    throw new Incomplete();
+                }
+            } else if (type == TokenType.IN || type == TokenType.HERE_STRING || type == TokenType.OUT
+                    || type == TokenType.OUT_APPEND || type == TokenType.ERR || type == TokenType.ERR_APPEND) {
+                redirect(pipeline, type);
+            } else {
+                break;
+            }
+        }
+        if (!words.isEmpty() || compound != null) {
+            addStage(pipeline, words, compound);
+        }
+        if (position == start) {
+            if (!timed) {
+                throw unexpected();
+            }
+            // 单独一个 time 只报告时间
+            pipeline.text = "";
+            return pipeline;
+        }
+        if (is(TokenType.BACKGROUND)) {
+            pipeline.background = true;
+        }
+        if (compound != null && pipeline.commands.size() == 1 && !pipeline.background && !timed
+                && pipeline.inRedirect == null && pipeline.hereString == null
+                && pipeline.outRedirect == null && pipeline.errRedirect == null) {
+            // 单独的复合命令在当前 shell 里运行，循环变量在之后仍然可见
+            return compound;
+        }
+        pipeline.text = text.substring(lexer.start(start), lexer.end(position - 1)).strip();
+        if (pipeline.background) {
+            position++;
+        }
+        var loopControl = loopControl(pipeline);
+        return loopControl != null ? loopControl : pipeline;
+    }
+
+    private static void addStage(Script.Pipeline pipeline, List<Script.Word> words, Script compound) {
+        pipeline.commands.add(List.copyOf(words));
+        pipeline.compounds.add(compound);
+        words.clear();
+    }
+
+    private void redirect(Script.Pipeline pipeline, TokenType type) {
+        position++;
+        if (!is(TokenType.WORD)) {
+            throw new IllegalArgumentException("Missing redirection target.");
+        }
+        var target = word(position++);
+        switch (type) {
+            case IN, HERE_STRING -> {
+                // 输入只能接到管道的第一个命令上
+                if (!pipeline.commands.isEmpty()) {
+                    throw new IllegalArgumentException("Input redirection is only supported on the first command.");
+                }
+                pipeline.inRedirect = type == TokenType.IN ? target : null;
+                pipeline.hereString = type == TokenType.HERE_STRING ? target : null;
+            }
+            case OUT, OUT_APPEND -> {
+                pipeline.outRedirect = target;
+                pipeline.outAppend = type == TokenType.OUT_APPEND;
+            }
+            default -> {
+                pipeline.errRedirect = target;
+                pipeline.errAppend = type == TokenType.ERR_APPEND;
+            }
+        }
+    }
+
+    /**
+     * A lone {@code break [n]} or {@code continue [n]}, which the interpreter runs itself.
+     */
+    private static Script loopControl(Script.Pipeline pipeline) {
+        if (pipeline.commands.size() != 1 || pipeline.compounds.getFirst() != null
+                || pipeline.background || pipeline.timed) {
+            return null;
+        }
+        var words = pipeline.commands.getFirst();
+        var name = words.getFirst().source();
+        if (!name.equals("break") && !name.equals("continue")) {
+            return null;
+        }
+        var levels = 1;
+        if (words.size() > 1) {
+            var argument = words.get(1).source();
+            try {
+                levels = Integer.parseInt(argument);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("%s: %s: numeric argument required", name, argument));
+            }
+            if (levels < 1) {
+                throw new IllegalArgumentException(String.format("%s: %d: loop count out of range", name, levels));
+            }
+        }
+        return new Script.Break(name.equals("continue"), levels);
+    }
+
+    private Script.Word word(int index) {
+        return new Script.Word(lexer.source(index), lexer.word(index), lexer.pattern(index));
+    }
+
+    private boolean is(TokenType type) {
+        return position < count && lexer.type(position) == type;
+    }
+
+    private boolean isKeyword(String keyword) {
+        return is(TokenType.WORD)
+                && lexer.end(position) - lexer.start(position) == keyword.length()
+                && text.startsWith(keyword, lexer.start(position));
+    }
+
+    private boolean isTerminator() {
+        return is(TokenType.WORD) && TERMINATORS.contains(lexer.source(position));
+    }
+
+    private IllegalArgumentException unexpected() {
+        if (position == count) {
+            return new Incomplete();
+        }
+        var token = lexer.type(position) == TokenType.NEWLINE ? "newline" : lexer.source(position);
+        return new IllegalArgumentException(String.format("syntax error near unexpected token `%s'", token));
+    }
+
+}
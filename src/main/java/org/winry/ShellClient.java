@@ -0,0 +1,64 @@
+package org.winry;
+
+import java.io.IOException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Thin client for {@link ShellDaemon}: sends its arguments, working directory and environment,
+ * forwards standard input and writes out what the daemon sends back, then exits with the status
+ * of the request. Without a daemon, or without arguments, the shell runs in this JVM instead.
+ */
+public class ShellClient {
+
+    public static void main(String[] args) throws Exception {
+        SocketChannel channel = null;
+        if (args.length > 0) {
+            try {
+                channel = SocketChannel.open(UnixDomainSocketAddress.of(ShellDaemon.defaultSocket()));
+            } catch (IOException e) {
+                // 没有守护进程，退回到本地执行
+            }
+        }
+        if (channel == null) {
+            Main.main(args);
+            return;
+        }
+
+        var frames = new ShellDaemon.Frames(channel);
+        var request = ShellDaemon.request(System.getProperty("user.dir"), System.getenv(), args);
+        frames.write(ShellDaemon.REQUEST, request, 0, request.length);
+
+        var stdin = Thread.ofPlatform().daemon().start(() -> {
+            var buffer = new byte[64 * 1024];
+            try {
+                int n;
+                while ((n = System.in.read(buffer)) > 0) {
+                    frames.write(ShellDaemon.STDIN, buffer, 0, n);
+                }
+                frames.write(ShellDaemon.STDIN, buffer, 0, 0);
+            } catch (IOException e) {
+                // 守护进程已经结束了这次请求
+            }
+        });
+
+        var status = 1;
+        ShellDaemon.Frame frame;
+        while ((frame = frames.read()) != null) {
+            if (frame.type() == ShellDaemon.STDOUT) {
+                System.out.write(frame.payload());
+                System.out.flush();
+            } else if (frame.type() == ShellDaemon.STDERR) {
+                System.err.write(frame.payload());
+                System.err.flush();
+            } else if (frame.type() == ShellDaemon.EXIT) {
+                status = ByteBuffer.wrap(frame.payload()).getInt();
+                break;
+            }
+        }
+        stdin.interrupt();
+        System.exit(status);
+    }
+
+}
@@ -0,0 +1,319 @@
+package org.winry;
+
+import jdk.net.ExtendedSocketOptions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.URISyntaxException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps a warm JVM listening on a Unix domain socket and runs batch requests ({@code -c} or a
+ * script) sent by {@link ShellClient}, each on its own thread, in the client's working directory
+ * and environment. Only the user running the daemon may connect.
+ * <p>
+ * The JDK cannot pass file descriptors over a socket, so the client's standard streams travel as
+ * frames instead: a type byte, a length and the payload. The client sends one {@link #REQUEST}
+ * frame followed by {@link #STDIN} frames, an empty one marking EOF; the daemon answers with
+ * {@link #STDOUT} and {@link #STDERR} frames and ends with an {@link #EXIT} frame holding the status.
+ */
+public class ShellDaemon {
+
+    public static final String SOCKET = "SHELL_SOCKET";
+
+    static final byte REQUEST = 0;
+    static final byte STDIN = 1;
+    static final byte STDOUT = 2;
+    static final byte STDERR = 3;
+    static final byte EXIT = 4;
+
+    private static final int MAGIC = 0x53484c44;
+
+    /**
+     * {@code $SHELL_SOCKET}, or {@code codecrafters-shell.sock} in {@code $XDG_RUNTIME_DIR} or the
+     * temporary directory.
+     */
+    static Path defaultSocket() {
+        var socket = System.getenv(SOCKET);
+        if (socket != null) {
+            return Path.of(socket);
+        }
+        var runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDir != null) {
+            return Path.of(runtimeDir, "codecrafters-shell.sock");
+        }
+        var name = "codecrafters-shell-" + System.getProperty("user.name") + ".sock";
+        return Path.of(System.getProperty("java.io.tmpdir"), name);
+    }
+
+    public static void serve(Path socket) throws IOException {
+        warmUp();
+        var build = buildFile();
+        var builtAt = build != null ? Files.getLastModifiedTime(build) : null;
+        Files.deleteIfExists(socket);
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Files.setPosixFilePermissions(socket, PosixFilePermissions.fromString("rw-------"));
+            socket.toFile().deleteOnExit();
+            System.err.println("shell daemon listening on " + socket);
+            while (true) {
+                var channel = server.accept();
+                // 绑定和 chmod 之间别的用户也能连上，所以按对端的身份把关
+                if (!isOwner(channel)) {
+                    channel.close();
+                    continue;
+                }
+                var stale = build != null && !Files.getLastModifiedTime(build).equals(builtAt);
+                // 平台线程不是守护线程，停止监听后 JVM 也会等正在运行的请求结束
+                Thread.ofPlatform().name("shell-session").start(() -> {
+                    try (channel) {
+                        handle(new Frames(channel), stale ? build : null);
+                    } catch (IOException e) {
+                        // 客户端提前断开
+                    }
+                });
+                if (stale) {
+                    // 之后的客户端连不上，就会运行新的构建
+                    break;
+                }
+            }
+        } finally {
+            Files.deleteIfExists(socket);
+        }
+    }
+
+    /**
+     * The jar the daemon runs from, or null when it runs from a directory of classes.
+     */
+    private static Path buildFile() {
+        var codeSource = ShellDaemon.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            return null;
+        }
+        try {
+            var path = Path.of(codeSource.getLocation().toURI());
+            return Files.isRegularFile(path) ? path : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
+    private static boolean isOwner(SocketChannel channel) {
+        try {
+            var peer = channel.getOption(ExtendedSocketOptions.SO_PEERCRED);
+            return peer.user().getName().equals(System.getProperty("user.name"));
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs the parser over a few lines so the first request does not pay for the JIT.
+     */
+    private static void warmUp() {
+        for (int i = 0; i < 5_000; i++) {
+            Main.parse("echo \"warm $HOME\" 'up' | grep -v x\\ y > /dev/null 2>> /dev/null");
+        }
+    }
+
+    /**
+     * Runs one request. {@code rebuilt} is the jar when it has changed since the daemon started:
+     * the request still runs, with a warning, and the daemon stops listening.
+     */
+    private static void handle(Frames frames, Path rebuilt) throws IOException {
+        var request = frames.read();
+        if (request == null || request.type != REQUEST) {
+            return;
+        }
+        var data = new DataInputStream(new ByteArrayInputStream(request.payload));
+        if (data.readInt() != MAGIC) {
+            return;
+        }
+        var cwd = Path.of(readString(data));
+        var environment = new HashMap<String, String>();
+        for (int i = data.readInt(); i > 0; i--) {
+            environment.put(readString(data), readString(data));
+        }
+        var args = new String[data.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = readString(data);
+        }
+
+        var stdin = new FrameInputStream(frames);
+        var stdout = new PrintStream(new FrameOutputStream(frames, STDOUT), true);
+        var stderr = new PrintStream(new FrameOutputStream(frames, STDERR), true);
+        if (rebuilt != null) {
+            stderr.println("shell daemon: " + rebuilt + " was rebuilt since the daemon started; "
+                    + "this is the last request it serves");
+        }
+        var status = Main.runSession(cwd, Map.copyOf(environment), args, stdin, stdout, stderr);
+        stdout.flush();
+        stderr.flush();
+        frames.write(EXIT, ByteBuffer.allocate(4).putInt(status).array(), 0, 4);
+    }
+
+    /**
+     * Encodes the {@link #REQUEST} frame sent by the client.
+     */
+    static byte[] request(String cwd, Map<String, String> environment, String[] args) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        writeString(data, cwd);
+        data.writeInt(environment.size());
+        for (var entry : environment.entrySet()) {
+            writeString(data, entry.getKey());
+            writeString(data, entry.getValue());
+        }
+        data.writeInt(args.length);
+        for (var arg : args) {
+            writeString(data, arg);
+        }
+        data.flush();
+        return bytes.toByteArray();
+    }
+
+    // writeUTF 限制 64 KiB，参数和环境变量可能更长
+    private static void writeString(DataOutputStream data, String value) throws IOException {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        data.writeInt(bytes.length);
+        data.write(bytes);
+    }
+
+    private static String readString(DataInputStream data) throws IOException {
+        return new String(data.readNBytes(data.readInt()), StandardCharsets.UTF_8);
+    }
+
+    record Frame(byte type, byte[] payload) {
+    }
+
+    /**
+     * Frame reads and writes on a socket channel. Reading and writing go straight to the channel,
+     * which allows one reader and one writer at the same time; the streams from
+     * {@link java.nio.channels.Channels} would share a lock and block each other.
+     */
+    static class Frames {
+        private final SocketChannel channel;
+        private final ByteBuffer header = ByteBuffer.allocate(5);
+
+        Frames(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Returns the next frame, or null at the end of the stream.
+         */
+        Frame read() throws IOException {
+            header.clear();
+            if (!readFully(header)) {
+                return null;
+            }
+            header.flip();
+            var type = header.get();
+            var payload = ByteBuffer.allocate(header.getInt());
+            if (!readFully(payload)) {
+                throw new EOFException();
+            }
+            return new Frame(type, payload.array());
+        }
+
+        synchronized void write(byte type, byte[] bytes, int offset, int length) throws IOException {
+            var frame = new ByteBuffer[]{
+                    ByteBuffer.allocate(5).put(type).putInt(length).flip(),
+                    ByteBuffer.wrap(bytes, offset, length)
+            };
+            while (frame[1].hasRemaining() || frame[0].hasRemaining()) {
+                channel.write(frame);
+            }
+        }
+
+        private boolean readFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static class FrameOutputStream extends OutputStream {
+        private final Frames frames;
+        private final byte type;
+
+        FrameOutputStream(Frames frames, byte type) {
+            this.frames = frames;
+            this.type = type;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > 0) {
+                frames.write(type, bytes, offset, length);
+            }
+        }
+    }
+
+    /**
+     * The client's standard input, read one frame at a time as the session asks for it.
+     */
+    private static class FrameInputStream extends InputStream {
+        private final Frames frames;
+        private byte[] current = new byte[0];
+        private int position;
+        private boolean eof;
+
+        FrameInputStream(Frames frames) {
+            this.frames = frames;
+        }
+
+        @Override
+        public int read() throws IOException {
+            var one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+            while (position == current.length) {
+                if (eof) {
+                    return -1;
+                }
+                var frame = frames.read();
+                if (frame == null || frame.type != STDIN || frame.payload.length == 0) {
+                    eof = true;
+                } else {
+                    current = frame.payload;
+                    position = 0;
+                }
+            }
+            var n = Math.min(length, current.length - position);
+            System.arraycopy(current, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+    }
+
+}
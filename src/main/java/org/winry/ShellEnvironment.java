@@ -0,0 +1,178 @@
+package org.winry;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The shell's variables. Exported ones are kept as a difference from the JVM's own environment:
+ * the variables that were exported with another value and the inherited ones that were unset.
+ * {@code export} and {@code unset} replace that difference with an updated copy, so a pipeline that
+ * is starting processes never sees a half-applied change, and only the difference is copied, both
+ * then and when a child is started. Variables that are only set, like a {@code for} loop's, stay in
+ * the shell and are not passed to children.
+ */
+public class ShellEnvironment {
+
+    // 子进程默认继承的环境，System.getenv() 本身就是不可修改的
+    private static final Map<String, String> INHERITED = System.getenv();
+
+    private volatile Diff diff;
+    private final Map<String, String> locals = new ConcurrentHashMap<>();
+
+    private ShellEnvironment(Diff diff) {
+        this.diff = diff;
+    }
+
+    /**
+     * The environment this JVM was started with.
+     */
+    static ShellEnvironment inherit() {
+        return new ShellEnvironment(Diff.NONE);
+    }
+
+    static ShellEnvironment of(Map<String, String> variables) {
+        var puts = new HashMap<String, String>();
+        for (var entry : variables.entrySet()) {
+            if (!entry.getValue().equals(INHERITED.get(entry.getKey()))) {
+                puts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        var removals = new HashSet<String>();
+        for (var name : INHERITED.keySet()) {
+            if (!variables.containsKey(name)) {
+                removals.add(name);
+            }
+        }
+        return new ShellEnvironment(new Diff(puts, removals));
+    }
+
+    String get(String name) {
+        var value = exported(name);
+        return value != null ? value : locals.get(name);
+    }
+
+    private String exported(String name) {
+        var current = diff;
+        var value = current.puts.get(name);
+        if (value != null || current.removals.contains(name)) {
+            return value;
+        }
+        return INHERITED.get(name);
+    }
+
+    /**
+     * Assigns {@code name}, which stays in the shell unless it is already exported.
+     */
+    synchronized void set(String name, String value) {
+        if (exported(name) != null) {
+            export(name, value);
+        } else {
+            locals.put(name, value);
+        }
+    }
+
+    /**
+     * {@code export NAME}: passes a variable that was only set on to children.
+     */
+    synchronized void export(String name) {
+        var value = locals.remove(name);
+        if (value != null) {
+            export(name, value);
+        }
+    }
+
+    synchronized void export(String name, String value) {
+        locals.remove(name);
+        if (value.equals(exported(name))) {
+            return;
+        }
+        var puts = new HashMap<>(diff.puts);
+        var removals = new HashSet<>(diff.removals);
+        removals.remove(name);
+        if (value.equals(INHERITED.get(name))) {
+            puts.remove(name);
+        } else {
+            puts.put(name, value);
+        }
+        diff = new Diff(puts, removals);
+    }
+
+    synchronized void unset(String name) {
+        locals.remove(name);
+        if (exported(name) == null) {
+            return;
+        }
+        var puts = new HashMap<>(diff.puts);
+        puts.remove(name);
+        var removals = new HashSet<>(diff.removals);
+        if (INHERITED.containsKey(name)) {
+            removals.add(name);
+        }
+        diff = new Diff(puts, removals);
+    }
+
+    /**
+     * Applies the difference to the child's environment, which starts as a copy of the JVM's.
+     */
+    void applyTo(ProcessBuilder processBuilder) {
+        var current = diff;
+        if (current.isEmpty()) {
+            return;
+        }
+        var environment = processBuilder.environment();
+        environment.keySet().removeAll(current.removals);
+        environment.putAll(current.puts);
+    }
+
+    /**
+     * {@code export} without arguments: every variable as {@code declare -x NAME="value"}, sorted.
+     */
+    Iterable<String> declarations() {
+        var lines = new TreeMap<String, String>();
+        var current = diff;
+        var variables = new HashMap<>(INHERITED);
+        variables.keySet().removeAll(current.removals);
+        variables.putAll(current.puts);
+        for (var entry : variables.entrySet()) {
+            var value = entry.getValue().replace("\\", "\\\\").replace("\"", "\\\"")
+                    .replace("$", "\\$").replace("`", "\\`");
+            lines.put(entry.getKey(), "declare -x " + entry.getKey() + "=\"" + value + "\"");
+        }
+        return lines.values();
+    }
+
+    /**
+     * Whether {@code name} can be a variable name: a letter or underscore, then letters, digits or
+     * underscores.
+     */
+    static boolean isName(String name) {
+        if (name.isEmpty() || Character.isDigit(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            var c = name.charAt(i);
+            if (c != '_' && !(c < 128 && Character.isLetterOrDigit(c))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Exported values that differ from the inherited environment and inherited names that were
+     * unset. Never modified once built.
+     */
+    private record Diff(Map<String, String> puts, Set<String> removals) {
+
+        static final Diff NONE = new Diff(Map.of(), Set.of());
+
+        boolean isEmpty() {
+            return puts.isEmpty() && removals.isEmpty();
+        }
+    }
+
+}
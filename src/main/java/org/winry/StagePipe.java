@@ -0,0 +1,137 @@
+package org.winry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+
+/**
+ * A bounded in-memory pipe between pipeline stages that any number of threads may read or write,
+ * as the commands inside a compound command do. {@link PipedInputStream} fails once the one thread
+ * that wrote to it has ended.
+ * <p>
+ * It blocks with {@link Object#wait()}, like {@link PipedInputStream}, so a virtual thread that
+ * waits while a caller holds a monitor gets a compensating carrier instead of stalling the
+ * scheduler.
+ */
+public class StagePipe {
+
+    private final byte[] buffer;
+    private int head;
+    private int count;
+    private boolean writerClosed;
+    private boolean readerClosed;
+
+    public StagePipe(int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * The read end: end of file once the write end is closed and everything has been read.
+     */
+    InputStream source() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                var one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return StagePipe.this.read(bytes, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+    }
+
+    /**
+     * The write end: fails once the read end is closed, like a write after {@code SIGPIPE}.
+     */
+    OutputStream sink() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                StagePipe.this.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+    }
+
+    private synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (count == 0 && !writerClosed && !readerClosed) {
+            await();
+        }
+        if (readerClosed) {
+            throw new IOException("Pipe closed");
+        }
+        if (count == 0) {
+            return -1;
+        }
+        var n = 0;
+        while (n < length && count > 0) {
+            var chunk = Math.min(Math.min(length - n, count), buffer.length - head);
+            System.arraycopy(buffer, head, bytes, offset + n, chunk);
+            head = (head + chunk) % buffer.length;
+            count -= chunk;
+            n += chunk;
+        }
+        notifyAll();
+        return n;
+    }
+
+    private synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            while (count == buffer.length && !readerClosed && !writerClosed) {
+                await();
+            }
+            if (readerClosed || writerClosed) {
+                throw new IOException("Pipe closed");
+            }
+            var tail = (head + count) % buffer.length;
+            var chunk = Math.min(Math.min(length, buffer.length - count), buffer.length - tail);
+            System.arraycopy(bytes, offset, buffer, tail, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+            notifyAll();
+        }
+    }
+
+    private synchronized void closeReader() {
+        readerClosed = true;
+        count = 0;
+        notifyAll();
+    }
+
+    private synchronized void closeWriter() {
+        writerClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting on a pipe", e);
+        }
+    }
+
+}
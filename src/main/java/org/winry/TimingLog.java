@@ -0,0 +1,74 @@
+package org.winry;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends one JSON object per command line to the file named by {@code TIMING_LOG}, with the exit
+ * status and the {@link CommandTimer} times in microseconds. Each record is a single append, so
+ * several shells can log to the same file.
+ */
+public class TimingLog implements AutoCloseable {
+
+    private final FileChannel channel;
+    private final StringBuilder record = new StringBuilder(256);
+
+    private TimingLog(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Opens the log at {@code file}, or returns null if {@code file} is null.
+     */
+    public static TimingLog open(Path file) throws IOException {
+        if (file == null) {
+            return null;
+        }
+        return new TimingLog(FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+    }
+
+    public synchronized void append(String command, int status, CommandTimer timer) throws IOException {
+        record.setLength(0);
+        record.append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"command\":\"");
+        escape(command);
+        record.append("\",\"status\":").append(status)
+                .append(",\"real_us\":").append(timer.realNanos() / 1000)
+                .append(",\"user_us\":").append(timer.userNanos() / 1000)
+                .append(",\"sys_us\":").append(timer.sysNanos() / 1000);
+        for (var phase : CommandTimer.Phase.values()) {
+            record.append(",\"").append(phase.name().toLowerCase()).append("_us\":")
+                    .append(timer.phaseNanos(phase) / 1000);
+        }
+        record.append("}\n");
+
+        var buffer = ByteBuffer.wrap(record.toString().getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void escape(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            var ch = text.charAt(i);
+            if (ch == '"' || ch == '\\') {
+                record.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                record.append(String.format("\\u%04x", (int) ch));
+            } else {
+                record.append(ch);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
@@ -1,80 +1,92 @@
 package org.winry;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.PriorityQueue;
 
+/**
+ * Prefix tree over command names. Each node keeps its children in a pair of parallel arrays sorted
+ * by character, so a child lookup is a binary search and a node costs two small arrays rather than
+ * a list of boxed nodes. Words are returned in character order.
+ */
 public class Trie {
 
-    private TrieNode root = new TrieNode(new ArrayList<>(), false, '\0');
+    private final TrieNode root;
 
     public Trie() {
+        this(new TrieNode());
+    }
+
+    private Trie(TrieNode root) {
+        this.root = root;
+    }
 
+    /**
+     * Returns a trie with this one's words and {@code words}. Only the nodes on the paths of the
+     * new words are copied and the rest are shared, so this trie, which readers may still be
+     * walking, is left as it is.
+     */
+    public Trie with(Collection<String> words) {
+        var copied = Collections.newSetFromMap(new IdentityHashMap<TrieNode, Boolean>());
+        var newRoot = root.copy();
+        copied.add(newRoot);
+        for (var word : words) {
+            var currentNode = newRoot;
+            for (int i = 0; i < word.length(); i++) {
+                var index = currentNode.indexOf(word.charAt(i));
+                if (index >= 0 && !copied.contains(currentNode.children[index])) {
+                    currentNode.children[index] = currentNode.children[index].copy();
+                    copied.add(currentNode.children[index]);
+                }
+                var child = currentNode.getOrAddChild(word.charAt(i));
+                copied.add(child);
+                currentNode = child;
+            }
+            currentNode.isEndOfWord = true;
+        }
+        return new Trie(newRoot);
     }
 
     public void insert(String word) {
         var currentNode = root;
-        for (char c : word.toCharArray()) {
-            var childNode = containsChild(currentNode, c);
-            if (childNode != null) {
-                currentNode = childNode;
-            } else {
-                var newNode = new TrieNode(new ArrayList<>(), false, c);
-                currentNode.children.add(newNode);
-                currentNode = newNode;
-            }
+        for (int i = 0; i < word.length(); i++) {
+            currentNode = currentNode.getOrAddChild(word.charAt(i));
         }
         currentNode.isEndOfWord = true;
     }
 
     private TrieNode containsChild(TrieNode node, char c) {
-        for (TrieNode child : node.children) {
-            if (child.value == c) {
-                return child;
-            }
-        }
-        return null;
+        var index = node.indexOf(c);
+        return index >= 0 ? node.children[index] : null;
     }
 
-    public boolean search(String word) {
+    private TrieNode findNode(String prefix) {
         var currentNode = root;
-        var result = true;
-        for (char c : word.toCharArray()) {
-            var childNode = containsChild(currentNode, c);
-            if (childNode == null) {
-                result = false;
-                break;
-            } else {
-                currentNode = childNode;
-            }
+        for (int i = 0; i < prefix.length() && currentNode != null; i++) {
+            currentNode = containsChild(currentNode, prefix.charAt(i));
         }
-        return result && currentNode.isEndOfWord;
+        return currentNode;
+    }
+
+    public boolean search(String word) {
+        var node = findNode(word);
+        return node != null && node.isEndOfWord;
     }
 
     public boolean startsWith(String prefix) {
-        var currentNode = root;
-        var result = true;
-        for (char c : prefix.toCharArray()) {
-            var childNode = containsChild(currentNode, c);
-            if (childNode == null) {
-                result = false;
-                break;
-            } else {
-                currentNode = childNode;
-            }
-        }
-        return result;
+        return findNode(prefix) != null;
     }
 
     public List<String> getWordsWithPrefix(String prefix) {
-        var currentNode = root;
         List<String> results = new ArrayList<>();
-        for (char c : prefix.toCharArray()) {
-            var childNode = containsChild(currentNode, c);
-            if (childNode == null) {
-                return results; // No words with the given prefix
-            } else {
-                currentNode = childNode;
-            }
+        var currentNode = findNode(prefix);
+        if (currentNode == null) {
+            return results; // No words with the given prefix
         }
         collectWords(currentNode, new StringBuilder(prefix), results);
         return results;
@@ -83,7 +95,8 @@ public class Trie {
     public String getLongestCommonPrefix(String prefix) {
         var currentNode = root;
         StringBuilder commonPrefix = new StringBuilder();
-        for (char c : prefix.toCharArray()) {
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
             var childNode = containsChild(currentNode, c);
             if (childNode == null) {
                 break; // No further common prefix
@@ -92,26 +105,47 @@ public class Trie {
                 currentNode = childNode;
             }
         }
-        
+
         if (currentNode == root) {
             return ""; // No common prefix found
         }
 
-        while (currentNode.children.size() == 1 && !currentNode.isEndOfWord) {
-            currentNode = currentNode.children.getFirst();
-            commonPrefix.append(currentNode.value);
+        while (currentNode.size == 1 && !currentNode.isEndOfWord) {
+            commonPrefix.append(currentNode.keys[0]);
+            currentNode = currentNode.children[0];
         }
         return commonPrefix.toString();
     }
 
+    /**
+     * Returns at most {@code limit} words that contain {@code pattern} as a case-insensitive
+     * subsequence, best match first. Matches at the start of the word, right after a separator or
+     * right after the previous match score higher, and shorter words win ties.
+     * <p>
+     * The pattern is matched while walking the tree, so only words that enter the top {@code limit}
+     * are turned into strings. The walk stops after {@code budgetNanos} and returns the best matches
+     * found so far.
+     */
+    public List<String> getFuzzyMatches(String pattern, int limit, long budgetNanos) {
+        var search = new FuzzySearch(pattern.toLowerCase(), limit, System.nanoTime() + budgetNanos);
+        search.visit(root, 0, 0, 0, -1);
+        var matches = new ArrayList<>(search.best);
+        matches.sort(FuzzyMatch.ORDER.reversed());
+        var results = new ArrayList<String>(matches.size());
+        for (var match : matches) {
+            results.add(match.word);
+        }
+        return results;
+    }
+
     private void collectWords(TrieNode node, StringBuilder prefix, List<String> results) {
         if (node.isEndOfWord) {
             results.add(prefix.toString());
         }
-        for (TrieNode child : node.children) {
-            prefix.append(child.value);
-            collectWords(child, prefix, results);
-            prefix.deleteCharAt(prefix.length() - 1); // Backtrack
+        for (int i = 0; i < node.size; i++) {
+            prefix.append(node.keys[i]);
+            collectWords(node.children[i], prefix, results);
+            prefix.setLength(prefix.length() - 1); // Backtrack
         }
     }
 
@@ -123,7 +157,7 @@ public class Trie {
         System.out.println(trie.startsWith("app")); // true
         trie.insert("app");
         System.out.println(trie.search("app"));     // true
-        System.out.println(trie.getWordsWithPrefix("ap")); // [apple, app]
+        System.out.println(trie.getWordsWithPrefix("ap")); // [app, apple]
         System.out.println(trie.getLongestCommonPrefix("bce")); // ap
 
 
@@ -133,17 +167,128 @@ public class Trie {
         System.out.println(trie.getLongestCommonPrefix("xyz_")); // [xyz_foo, xyz_foo_bar,
         // xyz_foo_bar_baz]
         System.out.println(trie.getLongestCommonPrefix("xyz_foo_")); // [xyz_foo_bar_baz]
+
+        trie.insert("kubectl");
+        trie.insert("kill");
+        System.out.println(trie.getFuzzyMatches("kctl", 5, 1_000_000)); // [kubectl]
+        System.out.println(trie.getFuzzyMatches("xfb", 5, 1_000_000)); // [xyz_foo_bar, xyz_foo_bar_baz]
+    }
+
+    private record FuzzyMatch(String word, int score) {
+        // Worst match first, so the heap can evict it
+        static final Comparator<FuzzyMatch> ORDER = Comparator.comparingInt(FuzzyMatch::score)
+                .thenComparing(FuzzyMatch::word, Comparator.reverseOrder());
+    }
+
+    private static class FuzzySearch {
+        private static final int MATCH = 10;
+        private static final int CONSECUTIVE_BONUS = 15;
+        private static final int START_BONUS = 20;
+        private static final int SEPARATOR_BONUS = 10;
+
+        final char[] pattern;
+        final int limit;
+        final long deadline;
+        final PriorityQueue<FuzzyMatch> best;
+        char[] path = new char[64];
+        int visited;
+        boolean expired;
+
+        FuzzySearch(String pattern, int limit, long deadline) {
+            this.pattern = pattern.toCharArray();
+            this.limit = limit;
+            this.deadline = deadline;
+            this.best = new PriorityQueue<>(limit + 1, FuzzyMatch.ORDER);
+        }
+
+        void visit(TrieNode node, int depth, int matched, int score, int lastMatch) {
+            if ((++visited & 0xFF) == 0 && System.nanoTime() > deadline) {
+                expired = true;
+            }
+            if (expired) {
+                return;
+            }
+            if (node.isEndOfWord && matched == pattern.length) {
+                offer(depth, score - depth);
+            }
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            for (int i = 0; i < node.size; i++) {
+                char c = node.keys[i];
+                path[depth] = c;
+                if (matched < pattern.length && Character.toLowerCase(c) == pattern[matched]) {
+                    var gained = MATCH;
+                    if (depth == 0) {
+                        gained += START_BONUS;
+                    } else if (lastMatch == depth - 1) {
+                        gained += CONSECUTIVE_BONUS;
+                    } else if (isSeparator(path[depth - 1])) {
+                        gained += SEPARATOR_BONUS;
+                    }
+                    visit(node.children[i], depth + 1, matched + 1, score + gained, depth);
+                } else {
+                    visit(node.children[i], depth + 1, matched, score, lastMatch);
+                }
+            }
+        }
+
+        private void offer(int length, int score) {
+            if (best.size() == limit) {
+                if (score <= best.peek().score) {
+                    return;
+                }
+                best.poll();
+            }
+            best.add(new FuzzyMatch(new String(path, 0, length), score));
+        }
+
+        private static boolean isSeparator(char c) {
+            return c == '-' || c == '_' || c == '.';
+        }
     }
 
     private static class TrieNode {
-        List<TrieNode> children;
+        private static final char[] NO_KEYS = new char[0];
+        private static final TrieNode[] NO_CHILDREN = new TrieNode[0];
+
+        // Sorted by character; only the first size slots are in use
+        char[] keys = NO_KEYS;
+        TrieNode[] children = NO_CHILDREN;
+        int size;
         boolean isEndOfWord;
-        char value;
 
-        TrieNode(List<TrieNode> children, boolean isEndOfWord, char value) {
-            this.children = children;
-            this.isEndOfWord = isEndOfWord;
-            this.value = value;
+        TrieNode copy() {
+            var copy = new TrieNode();
+            copy.keys = Arrays.copyOf(keys, size);
+            copy.children = Arrays.copyOf(children, size);
+            copy.size = size;
+            copy.isEndOfWord = isEndOfWord;
+            return copy;
+        }
+
+        int indexOf(char c) {
+            return Arrays.binarySearch(keys, 0, size, c);
+        }
+
+        TrieNode getOrAddChild(char c) {
+            var index = indexOf(c);
+            if (index >= 0) {
+                return children[index];
+            }
+            var insertAt = -index - 1;
+            if (size == keys.length) {
+                var capacity = Math.max(2, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, insertAt, keys, insertAt + 1, size - insertAt);
+            System.arraycopy(children, insertAt, children, insertAt + 1, size - insertAt);
+            var child = new TrieNode();
+            keys[insertAt] = c;
+            children[insertAt] = child;
+            size++;
+            return child;
         }
     }
 
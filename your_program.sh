@@ -8,6 +8,17 @@
 
 set -e # Exit early if any commands fail
 
+# With SHELL_SOCKET set, a batch request (-c or a script) goes to the shell daemon listening there
+# (`SHELL_SOCKET=... ./your_program.sh --daemon`) through the native client, which needs neither a
+# build nor a JVM. Without a daemon the client comes back here with SHELL_CLIENT_FALLBACK set, and
+# the program is built and run as usual.
+client=/tmp/codecrafters-build-shell-java/shell-client
+if [ -n "$SHELL_SOCKET" ] && [ -z "$SHELL_CLIENT_FALLBACK" ] && [ $# -gt 0 ] && [ "$1" != --daemon ] \
+    && [ -x "$client" ]; then
+  SHELL_CLIENT_FALLBACK="$0" exec "$client" "$@"
+fi
+unset SHELL_CLIENT_FALLBACK
+
 # Copied from .codecrafters/compile.sh
 #
 # - Edit this to change how your program compiles locally
@@ -15,6 +26,9 @@ set -e # Exit early if any commands fail
 (
   cd "$(dirname "$0")" # Ensure compile steps are run within the repository directory
   mvn -q -B package -Ddir=/tmp/codecrafters-build-shell-java
+  if command -v cc > /dev/null; then
+    cc -O2 -pthread -o /tmp/codecrafters-build-shell-java/shell-client src/main/c/shell-client.c
+  fi
 )
 
 # Copied from .codecrafters/run.sh